@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,40 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes all the remaining bytes of the given buffer at once
+     * the default implementation falls back to {@link #decodeNextByte(byte)}
+     *
+     * @param buffer the bytes to decode, consumed up to its limit
+     * @param out every message completed by these bytes is appended to this list, in order
+     */
+    default void decode(ByteBuffer buffer, List<T> out) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                out.add(nextMessage);
+            }
+        }
+    }
+
+    /**
+     * decodes a range of a byte array at once
+     * the default implementation falls back to {@link #decodeNextByte(byte)}
+     *
+     * @param bytes the array holding the bytes to decode
+     * @param offset index of the first byte to decode
+     * @param length number of bytes to decode
+     * @param out every message completed by these bytes is appended to this list, in order
+     */
+    default void decode(byte[] bytes, int offset, int length, List<T> out) {
+        for (int i = offset; i < offset + length; i++) {
+            T nextMessage = decodeNextByte(bytes[i]);
+            if (nextMessage != null) {
+                out.add(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -12,7 +12,8 @@ public class Database {
 	private final String sqlHost;
 	private final int sqlPort;
 
-	private Database() {
+	//subclassed by tests that answer the SQL statements themselves
+	protected Database() {
 		userMap = new ConcurrentHashMap<>();
 		connectionsIdMap = new ConcurrentHashMap<>();
 		// SQL server connection details
@@ -29,7 +30,7 @@ public class Database {
 	 * @param sql SQL query string
 	 * @return Result string from SQL server
 	 */
-	private String executeSQL(String sql) {
+	protected String executeSQL(String sql) {
 		try (Socket socket = new Socket(sqlHost, sqlPort);
 			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
 			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
@@ -0,0 +1,230 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import bgu.spl.net.srv.BufferPool;
+
+/**
+ * Serializes outgoing frames straight into a pooled buffer.
+ * The exact size is computed first, then command, headers and body are written as UTF-8 without building
+ * an intermediate String or byte[]. The commands and header names the server sends are kept as ready
+ * made byte constants.
+ */
+public final class FrameWriter {
+
+    static final byte[] CONNECTED = ascii("CONNECTED");
+    static final byte[] RECEIPT = ascii("RECEIPT");
+    static final byte[] ERROR = ascii("ERROR");
+    static final byte[] MESSAGE = ascii("MESSAGE");
+
+    static final byte[] VERSION = ascii("version");
+    static final byte[] HEART_BEAT = ascii("heart-beat");
+    static final byte[] RECEIPT_ID = ascii("receipt-id");
+    static final byte[] ERROR_MESSAGE = ascii("message");
+    static final byte[] MESSAGE_ID = ascii("message-id");
+    static final byte[] DESTINATION = ascii("destination");
+    static final byte[] SUBSCRIPTION = ascii("subscription");
+    static final byte[] CONTENT_LENGTH = ascii("content-length");
+
+    private static final Map<String, byte[]> CONSTANTS = new HashMap<>();
+
+    static {
+        for (byte[] constant : new byte[][]{CONNECTED, RECEIPT, ERROR, MESSAGE,
+                VERSION, HEART_BEAT, RECEIPT_ID, ERROR_MESSAGE, MESSAGE_ID, DESTINATION, SUBSCRIPTION, CONTENT_LENGTH}) {
+            CONSTANTS.put(new String(constant, StandardCharsets.US_ASCII), constant);
+        }
+    }
+
+    private FrameWriter() {
+    }
+
+    /**
+     * @return a pooled buffer, ready to be written, holding the frame and its NUL terminator.
+     * same bytes as (frame.toString() + "\u0000") encoded as UTF-8
+     */
+    public static ByteBuffer write(StompFrame frame) {
+        Map<String, String> headers = frame.getHeaders();
+        String body = frame.getBody() != null ? frame.getBody() : "";
+
+        int size = length(frame.getCommand()) + 1;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            size += length(header.getKey()) + 1 + utf8Length(header.getValue()) + 1;
+        }
+        size += 1 + utf8Length(body) + 2;
+
+        ByteBuffer buffer = BufferPool.lease(size);
+        putToken(buffer, frame.getCommand());
+        buffer.put((byte) '\n');
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            putToken(buffer, header.getKey());
+            buffer.put((byte) ':');
+            putUtf8(buffer, header.getValue());
+            buffer.put((byte) '\n');
+        }
+        buffer.put((byte) '\n');
+        putUtf8(buffer, body);
+        buffer.put((byte) '\n');
+        buffer.put((byte) '\u0000');
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return a pooled buffer holding a RECEIPT for the receipt id in bytes[offset, offset + length),
+     * the same bytes write(StompFrame.receipt(id)) produces
+     */
+    public static ByteBuffer receipt(byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = BufferPool.lease(RECEIPT.length + 1 + RECEIPT_ID.length + 1 + length + 4);
+        buffer.put(RECEIPT).put((byte) '\n');
+        buffer.put(RECEIPT_ID).put((byte) ':').put(bytes, offset, length).put((byte) '\n');
+        buffer.put((byte) '\n').put((byte) '\n').put((byte) '\u0000');
+        buffer.flip();
+        return buffer;
+    }
+
+    //a command or header name, taken from the constants when it is one of them
+    private static void putToken(ByteBuffer buf, String token) {
+        byte[] constant = CONSTANTS.get(token);
+        if (constant != null) {
+            buf.put(constant);
+        } else {
+            putUtf8(buf, token);
+        }
+    }
+
+    private static int length(String token) {
+        byte[] constant = CONSTANTS.get(token);
+        return constant != null ? constant.length : utf8Length(token);
+    }
+
+    //number of bytes s takes in UTF-8, a lone surrogate counts as the '?' String.getBytes() would write
+    static int utf8Length(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                len++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    //writes s as UTF-8, the way String.getBytes(UTF_8) would
+    static void putUtf8(ByteBuffer buf, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xc0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xf0 | (cp >> 18)));
+                buf.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buf.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buf.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                buf.put((byte) '?');
+            } else {
+                buf.put((byte) (0xe0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buf.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    //writes s as UTF-8 into dst from index at, like putUtf8. returns the index after the last byte written
+    static int putUtf8(byte[] dst, int at, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[at++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[at++] = (byte) (0xc0 | (c >> 6));
+                dst[at++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[at++] = (byte) (0xf0 | (cp >> 18));
+                dst[at++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                dst[at++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                dst[at++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                dst[at++] = (byte) '?';
+            } else {
+                dst[at++] = (byte) (0xe0 | (c >> 12));
+                dst[at++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[at++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return at;
+    }
+
+    //number of bytes putDecimal writes for value
+    static int decimalLength(long value) {
+        int len = value < 0 ? 2 : 1;
+        for (long v = Math.abs(value); v >= 10; v /= 10) {
+            len++;
+        }
+        return len;
+    }
+
+    //writes the decimal digits of value without going through a String
+    static void putDecimal(ByteBuffer buf, int value) {
+        if (value == 0) {
+            buf.put((byte) '0');
+            return;
+        }
+        long v = value;
+        if (v < 0) {
+            buf.put((byte) '-');
+            v = -v;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= v) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buf.put((byte) ('0' + (v / divisor) % 10));
+        }
+    }
+
+    //writes the decimal digits of value into dst from index at, filled from the last digit back.
+    //returns the index after the last digit
+    static int putDecimal(byte[] dst, int at, int value) {
+        int end = at + decimalLength(value);
+        long v = value;
+        if (v < 0) {
+            dst[at] = '-';
+            v = -v;
+        }
+        int i = end;
+        do {
+            dst[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        return end;
+    }
+
+    //copies a constant into dst from index at, returns the index after it
+    static int put(byte[] dst, int at, byte[] constant) {
+        System.arraycopy(constant, 0, dst, at, constant.length);
+        return at + constant.length;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
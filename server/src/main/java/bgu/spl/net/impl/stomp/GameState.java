@@ -0,0 +1,95 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latest known state of one game channel, conflated from the event reports sent to it.
+ * Every report overwrites the keys it mentions, so the state grows with the number of distinct keys,
+ * not with the number of events. A snapshot is written in the same body format the clients report in,
+ * as a report by the user "snapshot", so a client stores it like any other event and summary can show it.
+ * Not thread safe: callers lock the state around apply and snapshot.
+ */
+public class GameState {
+
+    //reporter named in snapshots. the state mixes every user's reports, so none of them is named
+    public static final String SNAPSHOT_USER = "snapshot";
+
+    private String teamA = "";
+    private String teamB = "";
+    private String lastEventName = "";
+    private int lastTime = 0;
+    private long events = 0;
+    //sorted like the client's std::map, so snapshots list keys in the order reports do
+    private final Map<String, String> generalUpdates = new TreeMap<>();
+    private final Map<String, String> teamAUpdates = new TreeMap<>();
+    private final Map<String, String> teamBUpdates = new TreeMap<>();
+
+    /**
+     * folds one report body into the state. lines it does not understand are skipped
+     */
+    public void apply(String body) {
+        Map<String, String> section = null; //updates section the following "key: value" lines belong to
+        boolean inDescription = false;
+
+        for (String line : body.split("\n")) {
+            if (line.startsWith("team a:")) {
+                teamA = line.substring(7);
+            } else if (line.startsWith("team b:")) {
+                teamB = line.substring(7);
+            } else if (line.startsWith("event name:")) {
+                lastEventName = line.substring(11);
+            } else if (line.startsWith("time:")) {
+                try {
+                    lastTime = Integer.parseInt(line.substring(5).trim());
+                } catch (NumberFormatException e) {
+                    //keep the previous time
+                }
+            } else if (line.startsWith("general game updates:")) {
+                section = generalUpdates;
+            } else if (line.startsWith("team a updates:")) {
+                section = teamAUpdates;
+            } else if (line.startsWith("team b updates:")) {
+                section = teamBUpdates;
+            } else if (line.startsWith("description:")) {
+                inDescription = true; //descriptions are per event, they are not part of the state
+            } else if (section != null && !inDescription) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    String value = line.substring(colon + 1);
+                    section.put(line.substring(0, colon), value.startsWith(" ") ? value.substring(1) : value);
+                }
+            }
+        }
+        events++;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the state as a report body, the way a client would have sent it
+     */
+    public String snapshot() {
+        StringBuilder body = new StringBuilder();
+        body.append("user:").append(SNAPSHOT_USER).append('\n');
+        body.append("team a:").append(teamA).append('\n');
+        body.append("team b:").append(teamB).append('\n');
+        body.append("event name:").append(lastEventName).append('\n');
+        body.append("time:").append(lastTime).append('\n');
+        body.append("events:").append(events).append('\n');
+        appendSection(body, "general game updates:", generalUpdates);
+        appendSection(body, "team a updates:", teamAUpdates);
+        appendSection(body, "team b updates:", teamBUpdates);
+        body.append("description:snapshot of ").append(events).append(" events\n");
+        return body.toString();
+    }
+
+    private static void appendSection(StringBuilder body, String title, Map<String, String> updates) {
+        body.append(title).append('\n');
+        for (Map.Entry<String, String> update : updates.entrySet()) {
+            body.append(update.getKey()).append(": ").append(update.getValue()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Conflated state of every game channel, shared by all connections.
+ * Turned on with the stomp.snapshots system property. While off, reports are not parsed at all.
+ */
+public class GameStates {
+
+    private final boolean enabled = Boolean.getBoolean("stomp.snapshots");
+    private final ConcurrentHashMap<String, GameState> games = new ConcurrentHashMap<>();
+
+    private GameStates() {
+    }
+
+    public static GameStates getInstance() {
+        return Instance.instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the channel's state, created on first use. callers lock it while using it
+     */
+    public GameState get(String channel) {
+        return games.computeIfAbsent(channel, k -> new GameState());
+    }
+
+    private static class Instance {
+        static GameStates instance = new GameStates();
+    }
+}
@@ -0,0 +1,148 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import bgu.spl.net.srv.BufferPool;
+
+/**
+ * A MESSAGE frame encoded once for a whole broadcast.
+ * Everything but the subscription header is shared by all recipients, so the frame is kept as
+ * an immutable head (ending with "subscription:") and tail (from the end of that header line on,
+ * including the terminator). Each recipient gets a copy with only its subscription id spliced in.
+ * The frame carries a content-length header, so clients can read the body without scanning it for the NUL.
+ * A frame passed on while its body still arrives keeps only the bytes before the body, see {@link #streamed}.
+ */
+public class MessageFrame {
+
+    private final int messageId;
+    private final String destination;
+    private final byte[] head;
+    private final byte[] tail;
+
+    public MessageFrame(int messageId, String destination, String body) {
+        this(messageId, destination, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private MessageFrame(int messageId, String destination, byte[] body) {
+        this(messageId, destination, body, 0, body.length);
+    }
+
+    /**
+     * builds the frame around the text body bytes[offset, offset + length), copied once, never decoded
+     */
+    public MessageFrame(int messageId, String destination, byte[] bytes, int offset, int length) {
+        this(messageId, destination, bytes, offset, length, false);
+    }
+
+    /**
+     * @param binary true to send the body exactly as given. a text body is followed by a newline, as it always was
+     */
+    public MessageFrame(int messageId, String destination, byte[] bytes, int offset, int length, boolean binary) {
+        int contentLength = binary ? length : length + 1;
+        this.messageId = messageId;
+        this.destination = destination;
+        this.head = head(messageId, destination, contentLength);
+        this.tail = new byte[2 + contentLength + 1];
+        tail[0] = '\n';
+        tail[1] = '\n';
+        System.arraycopy(bytes, offset, tail, 2, length);
+        if (!binary) {
+            tail[length + 2] = '\n';
+        }
+        tail[tail.length - 1] = '\u0000';
+    }
+
+    private MessageFrame(int messageId, String destination, byte[] head, byte[] tail) {
+        this.messageId = messageId;
+        this.destination = destination;
+        this.head = head;
+        this.tail = tail;
+    }
+
+    /**
+     * A frame whose binary body of contentLength bytes is not held: the shared bytes stop where the body starts.
+     * encodeFor gives what a subscriber gets before the body, the body and the terminator are sent after it
+     */
+    public static MessageFrame streamed(int messageId, String destination, int contentLength) {
+        return new MessageFrame(messageId, destination, head(messageId, destination, contentLength), new byte[]{'\n', '\n'});
+    }
+
+    //same bytes FrameWriter produces for a MESSAGE frame, with subscription moved last
+    private static byte[] head(int messageId, String destination, int contentLength) {
+        byte[] head = new byte[FrameWriter.MESSAGE.length + 1
+                + FrameWriter.MESSAGE_ID.length + 1 + FrameWriter.decimalLength(messageId) + 1
+                + FrameWriter.DESTINATION.length + 1 + FrameWriter.utf8Length(destination) + 1
+                + FrameWriter.CONTENT_LENGTH.length + 1 + FrameWriter.decimalLength(contentLength) + 1
+                + FrameWriter.SUBSCRIPTION.length + 1];
+        //stored by index, the head is filled once and a ByteBuffer around it would only be garbage
+        int at = FrameWriter.put(head, 0, FrameWriter.MESSAGE);
+        head[at++] = '\n';
+        at = FrameWriter.put(head, at, FrameWriter.MESSAGE_ID);
+        head[at++] = ':';
+        at = FrameWriter.putDecimal(head, at, messageId);
+        head[at++] = '\n';
+        at = FrameWriter.put(head, at, FrameWriter.DESTINATION);
+        head[at++] = ':';
+        at = FrameWriter.putUtf8(head, at, destination);
+        head[at++] = '\n';
+        at = FrameWriter.put(head, at, FrameWriter.CONTENT_LENGTH);
+        head[at++] = ':';
+        at = FrameWriter.putDecimal(head, at, contentLength);
+        head[at++] = '\n';
+        at = FrameWriter.put(head, at, FrameWriter.SUBSCRIPTION);
+        head[at] = ':';
+        return head;
+    }
+
+    public int getMessageId() {
+        return messageId;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    //size of the frame without the subscription id
+    public int getSharedLength() {
+        return head.length + tail.length;
+    }
+
+    //size of the shared part before the subscription id
+    public int getHeadLength() {
+        return head.length;
+    }
+
+    /**
+     * writes the shared bytes, head then tail, without a subscription id. used to store the frame
+     */
+    public void putShared(ByteBuffer dst) {
+        dst.put(head);
+        dst.put(tail);
+    }
+
+    /**
+     * @return a pooled buffer, ready to be written, holding the frame for the given subscription
+     */
+    public ByteBuffer encodeFor(int subscriptionId) {
+        ByteBuffer frame = BufferPool.lease(head.length + FrameWriter.decimalLength(subscriptionId) + tail.length);
+        frame.put(head);
+        FrameWriter.putDecimal(frame, subscriptionId);
+        frame.put(tail);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Same as {@link #encodeFor(int)} for a frame whose shared bytes were stored elsewhere, e.g. in a journal.
+     * The head and tail are copied straight from the given buffers, their positions are left unchanged.
+     */
+    public static ByteBuffer encodeFor(ByteBuffer head, int subscriptionId, ByteBuffer tail) {
+        ByteBuffer frame = BufferPool.lease(head.remaining() + FrameWriter.decimalLength(subscriptionId) + tail.remaining());
+        frame.put(head.duplicate());
+        FrameWriter.putDecimal(frame, subscriptionId);
+        frame.put(tail.duplicate());
+        frame.flip();
+        return frame;
+    }
+}
@@ -0,0 +1,476 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An inbound STOMP frame kept as the bytes it arrived in, without the terminating NUL.
+ * Nothing is decoded up front: the first header or body access indexes the lines once, remembering only
+ * offsets, and a header value becomes a String only when it is asked for. The command is matched with a
+ * byte compare, and the body is exposed as a slice of the frame's bytes, so a SEND can be routed without
+ * ever turning its body into a String.
+ * Parsing follows the original String based parser: command, keys and values are trimmed, a header line
+ * without ':' is skipped, a repeated header keeps its last value and the body is trimmed.
+ * A frame with a content-length header has a binary body instead: exactly that many bytes, never trimmed.
+ * <p>
+ * The decoder recycles its frames: {@link #reset} points a frame at the next frame's bytes and keeps the
+ * index arrays, and header values decoded earlier (e.g. the destination a client keeps sending to) are
+ * reused instead of decoded again, so a steady stream of frames allocates nothing but their payload.
+ * <p>
+ * A large body may be handed out apart from its frame: the decoder then gives the headers as a streamed frame,
+ * followed by body parts, which are not frames but the next bytes of that body.
+ */
+public class RawFrame {
+
+    private static final int INITIAL_HEADERS = 8;
+    private static final int CACHED_VALUES = 8;
+
+    private byte[] data;
+    private int offset;
+    private int end; //exclusive, the NUL terminator is not part of the frame
+    private String error = null; //if not null, frame is invalid
+
+    //lazily built index
+    private boolean commandParsed = false;
+    private StompCommand command;
+    private boolean commandEmpty;
+    private boolean indexed = false;
+    private int headerCount = 0;
+    private int[] headerOffsets = new int[INITIAL_HEADERS * 4]; //keyStart, keyEnd, valueStart, valueEnd per header
+    private String[] headerValues = new String[INITIAL_HEADERS]; //decoded on demand
+    private int bodyStart;
+    private int bodyEnd;
+    private boolean binaryBody;
+    private boolean streamed; //the body follows in parts
+    private boolean part; //this is a part of a streamed body
+    private boolean lastPart;
+
+    //header values decoded by earlier frames, with the bytes they were decoded from
+    private final byte[][] cachedBytes = new byte[CACHED_VALUES][];
+    private final String[] cachedValues = new String[CACHED_VALUES];
+    private int nextCached = 0;
+
+    /**
+     * @param data the array holding the frame's bytes, which must not change while the frame is in use
+     * @param offset index of the frame's first byte
+     * @param length number of bytes of the frame, without the NUL terminator
+     */
+    public RawFrame(byte[] data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    public RawFrame(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    RawFrame() {
+    }
+
+    /**
+     * points this frame at another frame's bytes, forgetting everything parsed from the previous ones
+     */
+    void reset(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.end = offset + length;
+        error = null;
+        streamed = false;
+        part = false;
+        lastPart = false;
+        commandParsed = false;
+        command = null;
+        indexed = false;
+        Arrays.fill(headerValues, 0, headerCount, null);
+        headerCount = 0;
+    }
+
+    /**
+     * @return the frame's command, null if the command line is empty or not one the server handles
+     */
+    public StompCommand getCommand() {
+        if (!commandParsed) {
+            commandParsed = true;
+            int eol = indexOf('\n', offset);
+            int start = skipSpaceForward(offset, eol);
+            int end = skipSpaceBackward(start, eol);
+            commandEmpty = start == end;
+            command = StompCommand.of(data, start, end);
+        }
+        return command;
+    }
+
+    /**
+     * @return the value of the header, decoded on first use, or null if the frame has no such header
+     */
+    public String getHeader(String key) {
+        int h = lastHeader(key); //the last occurrence wins
+        if (h < 0) return null;
+        if (headerValues[h] == null) {
+            headerValues[h] = decodeValue(headerOffsets[h * 4 + 2], headerOffsets[h * 4 + 3]);
+        }
+        return headerValues[h];
+    }
+
+    public boolean hasHeader(String key) {
+        return lastHeader(key) >= 0;
+    }
+
+    /**
+     * @return the header's value parsed as an int straight from its bytes
+     * @throws NumberFormatException if the header is missing or not a number, like Integer.parseInt
+     */
+    public int getIntHeader(String key) {
+        long value = parseNumber(key);
+        if (value != (int) value) throw new NumberFormatException("not an int: " + getHeader(key));
+        return (int) value;
+    }
+
+    //flag to indicate if receipt is requested
+    public boolean receiptRequested() {
+        return hasHeader("receipt");
+    }
+
+    //bytes holding the frame, the body is the slice [getBodyOffset(), getBodyOffset() + getBodyLength())
+    public byte[] array() {
+        return data;
+    }
+
+    //index of the frame's first byte in array()
+    public int getOffset() {
+        return offset;
+    }
+
+    //size of the frame, without the NUL terminator
+    public int getLength() {
+        return end - offset;
+    }
+
+    public int getBodyOffset() {
+        index();
+        return bodyStart;
+    }
+
+    public int getBodyLength() {
+        index();
+        return bodyEnd - bodyStart;
+    }
+
+    //true if the body is exactly the bytes announced by a content-length header
+    public boolean hasContentLength() {
+        index();
+        return binaryBody;
+    }
+
+    /**
+     * @return the value of the content-length header, or -1 if it is missing or not a non negative number
+     */
+    public long getContentLength() {
+        if (!hasHeader("content-length")) return -1;
+        try {
+            long value = parseNumber("content-length");
+            return value >= 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    //the body decoded to a String. only for callers that really need text
+    public String getBodyString() {
+        index();
+        return new String(data, bodyStart, bodyEnd - bodyStart, StandardCharsets.UTF_8);
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return true if the body does not come with this frame but follows in parts, content-length bytes in all,
+     * see {@link #isBodyPart()}. the frame itself has all the headers and an empty body
+     */
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    /**
+     * @return true if this is not a frame but the next bytes of the body of the streamed frame before it,
+     * array()[getOffset(), getOffset() + getLength())
+     */
+    public boolean isBodyPart() {
+        return part;
+    }
+
+    //true if this part completes the body, the terminator was where content-length said
+    public boolean isLastPart() {
+        return lastPart;
+    }
+
+    //marks the headers of a frame whose body the decoder hands out in parts
+    void streamBody() {
+        streamed = true;
+    }
+
+    //marks a part of a streamed body
+    void bodyPart(boolean last) {
+        part = true;
+        lastPart = last;
+    }
+
+    //marks a frame the decoder refused, checkFrame() then fails with the error
+    void reject(String error) {
+        this.error = error;
+    }
+
+    //heart-beat header as {cx, cy}: the sender can send every cx ms, and wants to receive every cy ms
+    //a missing header means {0, 0}, no heart-beats
+    public long[] getHeartBeat() {
+        String value = getHeader("heart-beat");
+        if (value == null)
+            return new long[]{0, 0};
+        String[] parts = value.split(",");
+        return new long[]{Long.parseLong(parts[0].trim()), Long.parseLong(parts[1].trim())};
+    }
+
+    //value of an optional numeric header, -1 if absent
+    public long getCount(String key) {
+        return hasHeader(key) ? parseNumber(key) : -1;
+    }
+
+    //check command correctness and delegate header tests
+    public boolean checkFrame() {
+        if (error != null) //check if an earlier check already found an error
+            return false;
+
+        StompCommand cmd = getCommand();
+        //check command presence
+        if (commandEmpty) {
+            error = "missing command";
+            return false;
+        }
+        if (cmd == null) { //unknown command
+            error = "unknown command";
+            return false;
+        }
+        //a content-length must announce the body that was actually received
+        if (!checkCount("content-length"))
+            return false;
+        if (hasHeader("content-length") && !hasContentLength()) {
+            error = "content-length does not match the body";
+            return false;
+        }
+
+        //check required headers
+        switch (cmd) {
+            case CONNECT:
+                return checkParam("accept-version") && checkParam("host")
+                    && checkParam("login") && checkParam("passcode") && checkHeartBeat();
+            case SEND:
+                return checkParam("destination");
+            case SUBSCRIBE:
+                return checkParam("destination") && checkParam("id")
+                    && checkCount("replay-last") && checkCount("replay-from");
+            case UNSUBSCRIBE:
+                return checkParam("id");
+            case DISCONNECT:
+            default:
+                return true; //user can either disonnect gracefully or not
+        }
+    }
+
+    //automatic error frame generation based on stored error message
+    public StompFrame generateErrorFrame() {
+        return generateErrorFrame(getError());
+    }
+
+    //manual error frame generation with custom message, the offending frame is quoted in the body
+    public StompFrame generateErrorFrame(String errorMessage) {
+        return StompFrame.error(errorMessage, toString().replace("\u0000", ""));
+    }
+
+    /**
+     * @return a pooled buffer holding the RECEIPT answering this frame, written from the receipt header's bytes
+     */
+    public ByteBuffer encodeReceiptFrame() {
+        int h = lastHeader("receipt");
+        return FrameWriter.receipt(data, headerOffsets[h * 4 + 2], headerOffsets[h * 4 + 3] - headerOffsets[h * 4 + 2]);
+    }
+
+    //create connected frame that also answers the client's heart-beat header
+    public StompFrame generateConnectedFrame(String version, long canSend, long wantReceive) {
+        return StompFrame.connected(version, canSend, wantReceive);
+    }
+
+    //the frame as text, e.g. to quote it in an ERROR frame
+    @Override
+    public String toString() {
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    //optional heart-beat header must be two non negative numbers: cx,cy
+    private boolean checkHeartBeat() {
+        String value = getHeader("heart-beat");
+        if (value == null)
+            return true;
+        String[] parts = value.split(",");
+        try {
+            if (parts.length == 2 && Long.parseLong(parts[0].trim()) >= 0 && Long.parseLong(parts[1].trim()) >= 0)
+                return true;
+        } catch (NumberFormatException e) {
+            //fall through to the error
+        }
+        error = "malformed heart-beat header: " + value;
+        return false;
+    }
+
+    //optional numeric header must be a non negative number
+    private boolean checkCount(String key) {
+        String value = getHeader(key);
+        if (value == null)
+            return true;
+        try {
+            if (Long.parseLong(value.trim()) >= 0)
+                return true;
+        } catch (NumberFormatException e) {
+            //fall through to the error
+        }
+        error = "malformed " + key + " header: " + value;
+        return false;
+    }
+
+    //ensure required header is present in the frame
+    private boolean checkParam(String key) {
+        if (hasHeader(key))
+            return true;
+        error = "missing required header: " + key;
+        return false;
+    }
+
+    //index of the last header with the key, -1 if there is none
+    private int lastHeader(String key) {
+        index();
+        for (int h = headerCount - 1; h >= 0; h--) {
+            if (keyEquals(h, key)) return h;
+        }
+        return -1;
+    }
+
+    //digits of a header value, read without decoding it. same rules as Long.parseLong of the trimmed value
+    private long parseNumber(String key) {
+        int h = lastHeader(key);
+        if (h < 0) throw new NumberFormatException("missing header: " + key);
+        int start = headerOffsets[h * 4 + 2];
+        int stop = headerOffsets[h * 4 + 3];
+        boolean negative = start < stop && data[start] == '-';
+        int i = negative || (start < stop && data[start] == '+') ? start + 1 : start;
+        if (i == stop || stop - i > 18) return Long.parseLong(getHeader(key)); //empty or too long, let Long decide
+        long value = 0;
+        for (; i < stop; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("not a number: " + getHeader(key));
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    //a header value as a String, reusing the String of an earlier frame with the same bytes
+    private String decodeValue(int start, int stop) {
+        int n = stop - start;
+        for (int c = 0; c < CACHED_VALUES; c++) {
+            byte[] cached = cachedBytes[c];
+            if (cached != null && Arrays.equals(cached, 0, cached.length, data, start, stop)) {
+                return cachedValues[c];
+            }
+        }
+        String value = new String(data, start, n, StandardCharsets.UTF_8);
+        cachedBytes[nextCached] = Arrays.copyOfRange(data, start, stop);
+        cachedValues[nextCached] = value;
+        nextCached = (nextCached + 1) % CACHED_VALUES;
+        return value;
+    }
+
+    //finds the header lines and the body, once
+    private void index() {
+        if (indexed) return;
+        indexed = true;
+
+        int pos = indexOf('\n', offset) + 1; //skip the command line
+        bodyStart = bodyEnd = end; //no blank line, no body
+        binaryBody = false;
+        while (pos > offset && pos <= end) {
+            int eol = indexOf('\n', pos);
+            int start = skipSpaceForward(pos, eol);
+            if (start == eol) { //blank line, the body follows
+                int contentStart = Math.min(eol + 1, end);
+                long contentLength = getContentLength();
+                if (contentLength >= 0 && (streamed || contentLength == end - contentStart)) {
+                    binaryBody = true;
+                    bodyStart = contentStart;
+                    bodyEnd = end;
+                } else {
+                    bodyStart = skipSpaceForward(contentStart, end);
+                    bodyEnd = skipSpaceBackward(bodyStart, end);
+                }
+                break;
+            }
+            int colon = indexOf(':', pos, eol);
+            if (colon >= 0) {
+                int valueStart = skipSpaceForward(colon + 1, eol);
+                addHeader(start, skipSpaceBackward(start, colon), valueStart, skipSpaceBackward(valueStart, eol));
+            }
+            pos = eol + 1;
+        }
+    }
+
+    private void addHeader(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        if (headerCount == headerValues.length) {
+            headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+            headerValues = Arrays.copyOf(headerValues, headerValues.length * 2);
+        }
+        int at = headerCount * 4;
+        headerOffsets[at] = keyStart;
+        headerOffsets[at + 1] = keyEnd;
+        headerOffsets[at + 2] = valueStart;
+        headerOffsets[at + 3] = valueEnd;
+        headerCount++;
+    }
+
+    //compares a header key with an ASCII name, byte by byte
+    private boolean keyEquals(int h, String key) {
+        int start = headerOffsets[h * 4];
+        int end = headerOffsets[h * 4 + 1];
+        if (end - start != key.length()) return false;
+        for (int i = 0; i < key.length(); i++) {
+            if (data[start + i] != (byte) key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    //index of b at or after from, or end if there is none
+    private int indexOf(char b, int from) {
+        int i = indexOf(b, from, end);
+        return i < 0 ? end : i;
+    }
+
+    private int indexOf(char b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    //same whitespace String.trim() removes, never part of a multi-byte UTF-8 sequence
+    private static boolean isSpace(byte b) {
+        return (b & 0xff) <= ' ';
+    }
+
+    private int skipSpaceForward(int from, int to) {
+        while (from < to && isSpace(data[from])) from++;
+        return from;
+    }
+
+    private int skipSpaceBackward(int from, int to) {
+        while (to > from && isSpace(data[to - 1])) to--;
+        return to;
+    }
+}
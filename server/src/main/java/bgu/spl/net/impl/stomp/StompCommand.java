@@ -0,0 +1,36 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client commands the server handles. Matched against the raw command line without decoding it.
+ */
+public enum StompCommand {
+    CONNECT,
+    SEND,
+    SUBSCRIBE,
+    UNSUBSCRIBE,
+    DISCONNECT;
+
+    private static final StompCommand[] VALUES = values();
+
+    private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * @return the command spelled by bytes[start, end), or null if it is not one the server handles
+     */
+    public static StompCommand of(byte[] bytes, int start, int end) {
+        for (StompCommand command : VALUES) {
+            if (command.matches(bytes, start, end)) return command;
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] bytes, int start, int end) {
+        if (end - start != name.length) return false;
+        for (int i = 0; i < name.length; i++) {
+            if (bytes[start + i] != name[i]) return false;
+        }
+        return true;
+    }
+}
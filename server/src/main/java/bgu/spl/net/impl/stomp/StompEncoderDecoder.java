@@ -1,43 +1,311 @@
 package bgu.spl.net.impl.stomp;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
-public class StompEncoderDecoder implements MessageEncoderDecoder<String>{
+/**
+ * Splits the stream into frames. Frames are handed out as their raw bytes, parsing is left to RawFrame.
+ * A frame ends at the NUL after its body. When the headers carry a content-length, the body is skipped
+ * over without looking at its bytes, so it may itself contain NULs; otherwise the body is scanned for the NUL.
+ * A frame that arrived whole is a view of the caller's bytes, a frame that spans reads is a view of the
+ * decoder's own buffer. Either way it is only valid until the next decode call, when the decoder reuses
+ * the frame objects and its buffer: the handlers process every frame of a read before decoding the next one.
+ * <p>
+ * A frame larger than stomp.frame.maxBytes is not collected: the decoder hands out its headers as a frame
+ * that fails {@link RawFrame#checkFrame()}, so the client gets an ERROR, and ignores the rest of the stream.
+ * A content-length body of stomp.frame.largeBodyThreshold bytes or more is not collected either: the headers
+ * are handed out as a streamed frame as soon as they are complete, then every read hands out the body bytes
+ * it brought as a body part, a view of the read like a whole frame would be. The last part is handed out
+ * once the terminator was found where content-length said, if it is not there the frame is refused as above.
+ * A buffer that grew for a big frame without content-length shrinks back afterwards.
+ */
+public class StompEncoderDecoder implements MessageEncoderDecoder<RawFrame>{
 
-    private byte[] bytes = new byte[1 << 10]; //start with 1k
+    private static final int INITIAL_CAPACITY = 1 << 10; //1k, also what a grown buffer shrinks back to
+    private static final int SHRINK_ABOVE = 1 << 16; //64k
+    private static final int MAX_FRAME_BYTES = Integer.getInteger("stomp.frame.maxBytes", 1 << 22); //4m
+    private static final int LARGE_BODY_THRESHOLD = Integer.getInteger("stomp.frame.largeBodyThreshold", 1 << 16); //64k
+    private static final int QUOTED_BYTES = 1 << 10; //how much of a rejected frame the ERROR quotes
+    private static final byte[] EMPTY = new byte[0];
+
+    //frameEnd results besides the index of the terminator
+    private static final int INCOMPLETE = -1;
+    private static final int LARGE_BODY = -2;
+    private static final int TOO_LARGE = -3;
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int start = 0; //first byte of the frame still being received, the bytes before it belong to handed out frames
     private int len = 0;
+    private final List<RawFrame> frames = new ArrayList<>(); //recycled between decode calls
+    private int framesUsed = 0;
+
+    //how far the frame being received was scanned, relative to its first byte, so a read never rescans it
+    private int scanned = 0;
+    private int lineStart = 0; //start of the header line being scanned, 0 while on the command line
+    private int contentStart = -1; //first byte after the blank line, -1 until the headers are complete
+    private long contentLength = -1;
+    private final RawFrame headers = new RawFrame(); //reads content-length off the headers
+
+    //large body being handed out in parts: the bytes of it still to come, -1 while there is none,
+    //and the start of its frame, quoted if the body does not end where content-length said
+    private long bodyLeft = -1;
+    private byte[] largeHead = null;
+    private boolean rejected = false; //a frame was refused, the connection is being closed
+
+    private final byte[] single = new byte[1];
+    private final List<RawFrame> singleOut = new ArrayList<>(1);
 
     @Override
-    public String decodeNextByte(byte nextByte) {
-        if (nextByte == '\u0000') {
-            return popString();
+    public RawFrame decodeNextByte(byte nextByte) {
+        //same rules as the bulk decoding, the frame is valid until the next call
+        single[0] = nextByte;
+        singleOut.clear();
+        decode(single, 0, 1, singleOut);
+        return singleOut.isEmpty() ? null : singleOut.get(0);
+    }
+
+    @Override
+    public void decode(ByteBuffer buffer, List<RawFrame> out) {
+        if (buffer.hasArray()) {
+            decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), out);
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        recycle();
+        if (rejected) {
+            buffer.position(buffer.limit());
+            return;
+        }
+        int from = 0;
+        if (bodyLeft >= 0) {
+            //the part is copied to our own buffer, which holds nothing else while a large body is received
+            int n = (int) Math.min(buffer.remaining(), bodyLeft + 1);
+            ensureCapacity(n);
+            buffer.get(bytes, 0, n);
+            from = start = len = n; //dropped by the next call
+            feedBody(bytes, 0, n, out);
+            if (rejected) {
+                buffer.position(buffer.limit());
+                return;
+            }
+            if (bodyLeft >= 0) return;
         }
 
-        pushByte(nextByte);
-        return null; //not a line yet
+        //direct buffer: one bulk copy behind the pending bytes, then scan the copy for frames
+        int n = buffer.remaining();
+        ensureCapacity(len + n);
+        buffer.get(bytes, len, n);
+        len += n;
+        start = scan(bytes, from, len, out); //the unterminated tail is moved to the front by the next call
     }
 
     @Override
-    public byte[] encode(String message) { //transforms message to bytes
-        // add null char to end of message
-        return (message + "\u0000").getBytes(); //uses utf8 by default
+    public void decode(byte[] src, int offset, int length, List<RawFrame> out) {
+        recycle();
+        if (rejected) return;
+        int end = offset + length;
+        if (bodyLeft >= 0) {
+            offset = feedBody(src, offset, end, out);
+            if (bodyLeft >= 0 || rejected) return;
+        }
+        if (len > 0) {
+            //the first frame started in an earlier read, continue it in our own buffer
+            pushBytes(src, offset, end - offset);
+            start = scan(bytes, 0, len, out);
+            return;
+        }
+        //frames that arrived whole are handed out as views of src, only the unterminated tail is copied
+        int rest = scan(src, offset, end, out);
+        pushBytes(src, rest, end - rest);
+    }
+
+    @Override
+    public byte[] encode(RawFrame message) { //frame's bytes as they came in
+        byte[] encoded = new byte[message.getLength() + 1];
+        System.arraycopy(message.array(), message.getOffset(), encoded, 0, message.getLength());
+        encoded[message.getLength()] = '\u0000'; // add null char to end of message
+        return encoded;
+    }
+
+    //a lone EOL outside a frame is a STOMP heart-beat
+    private static boolean isEol(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    //hands out every complete frame of arr[from, to), returns where the unterminated rest begins
+    private int scan(byte[] arr, int from, int to, List<RawFrame> out) {
+        int frameStart = from;
+        while (frameStart < to) {
+            if (scanned == 0 && isEol(arr[frameStart])) {
+                frameStart++; //heart-beat between frames
+                continue;
+            }
+            int end = frameEnd(arr, frameStart, to);
+            if (end == LARGE_BODY) {
+                //the headers go out now, the body follows in parts as it arrives
+                int bodyStart = frameStart + contentStart;
+                RawFrame head = frame(arr, frameStart, bodyStart);
+                head.streamBody();
+                out.add(head);
+                largeHead = Arrays.copyOfRange(arr, frameStart, Math.min(bodyStart, frameStart + QUOTED_BYTES));
+                bodyLeft = contentLength;
+                frameDone(0);
+                frameStart = feedBody(arr, bodyStart, to, out);
+                continue;
+            }
+            if (end == TOO_LARGE || (end >= 0 && end - frameStart > MAX_FRAME_BYTES)
+                    || (end == INCOMPLETE && scanned > MAX_FRAME_BYTES)) {
+                reject(arr, frameStart, contentStart >= 0 ? frameStart + contentStart : to,
+                        "frame exceeds the maximum size of " + MAX_FRAME_BYTES + " bytes", out);
+                return to;
+            }
+            if (end == INCOMPLETE) break;
+            out.add(frame(arr, frameStart, end));
+            frameStart = end + 1;
+        }
+        return rejected ? to : frameStart;
+    }
+
+    /**
+     * @return index of the NUL ending the frame that starts at arr[frameStart], INCOMPLETE if it is not in arr yet,
+     * LARGE_BODY if its body should be collected apart or TOO_LARGE if its content-length is over the limit.
+     * picks up where the previous call for the same frame stopped
+     */
+    private int frameEnd(byte[] arr, int frameStart, int to) {
+        int i = frameStart + scanned;
+        for (; contentStart < 0 && i < to; i++) {
+            byte b = arr[i];
+            if (b == '\u0000') {
+                return frameDone(i); //no blank line, headers only
+            }
+            if (b == '\n') {
+                if (lineStart > 0 && isBlank(arr, frameStart + lineStart, i)) {
+                    contentStart = i + 1 - frameStart;
+                    headers.reset(arr, frameStart, i - frameStart);
+                    contentLength = headers.getContentLength();
+                    headers.reset(EMPTY, 0, 0);
+                } else {
+                    lineStart = i + 1 - frameStart;
+                }
+            }
+        }
+        if (contentStart >= 0 && contentLength >= 0) {
+            if (contentLength > MAX_FRAME_BYTES - contentStart) return TOO_LARGE;
+            if (contentLength >= LARGE_BODY_THRESHOLD) return LARGE_BODY;
+            //jump straight to where the terminator has to be
+            long end = frameStart + contentStart + contentLength;
+            if (end >= to) {
+                scanned = i - frameStart;
+                return INCOMPLETE;
+            }
+            if (arr[(int) end] == '\u0000') {
+                return frameDone((int) end);
+            }
+            contentLength = -1; //wrong length, look for the terminator instead. RawFrame reports the mismatch
+        }
+        for (; i < to; i++) {
+            if (arr[i] == '\u0000') {
+                return frameDone(i);
+            }
+        }
+        scanned = i - frameStart;
+        return INCOMPLETE;
+    }
+
+    private int frameDone(int end) {
+        scanned = 0;
+        lineStart = 0;
+        contentStart = -1;
+        contentLength = -1;
+        return end;
+    }
+
+    //hands out the large body's bytes in src[from, to) as a part, returns where the bytes after it begin.
+    //the part that ends the body is only handed out once the terminator after it was checked
+    private int feedBody(byte[] src, int from, int to, List<RawFrame> out) {
+        int n = (int) Math.min(to - from, bodyLeft);
+        bodyLeft -= n;
+        if (bodyLeft > 0 || from + n == to) {
+            if (n > 0) {
+                RawFrame part = frame(src, from, from + n);
+                part.bodyPart(false);
+                out.add(part);
+            }
+            return from + n;
+        }
+        if (src[from + n] != '\u0000') {
+            reject(largeHead, 0, largeHead.length, "content-length does not match the body", out);
+            largeHead = null;
+            bodyLeft = -1;
+            return to;
+        }
+        RawFrame part = frame(src, from, from + n);
+        part.bodyPart(true);
+        out.add(part);
+        largeHead = null;
+        bodyLeft = -1;
+        return from + n + 1;
+    }
+
+    //hands out the start of a frame that is refused, the protocol answers it with an ERROR and disconnects
+    private void reject(byte[] arr, int from, int to, String error, List<RawFrame> out) {
+        RawFrame frame = frame(arr, from, Math.min(to, from + QUOTED_BYTES));
+        frame.reject(error);
+        out.add(frame);
+        rejected = true;
+        frameDone(0);
     }
 
-    private void pushByte(byte nextByte) {
-        if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
+    //same blank line rule as RawFrame: nothing but whitespace
+    private static boolean isBlank(byte[] arr, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if ((arr[i] & 0xff) > ' ') return false;
         }
+        return true;
+    }
 
-        bytes[len++] = nextByte;
+    //the frames handed out by the previous call are done with: reuse them, and drop their bytes
+    private void recycle() {
+        framesUsed = 0;
+        if (rejected) {
+            bytes = EMPTY;
+            start = len = 0;
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(bytes, start, bytes, 0, len - start);
+            len -= start;
+            start = 0;
+        }
+        if (bytes.length > SHRINK_ABOVE && len <= INITIAL_CAPACITY) {
+            bytes = Arrays.copyOf(bytes, INITIAL_CAPACITY); //a big frame is gone, back to the baseline
+        }
     }
 
-    private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
-        len = 0;
-        return result;
+    private RawFrame frame(byte[] array, int from, int to) {
+        if (framesUsed == frames.size()) {
+            frames.add(new RawFrame());
+        }
+        RawFrame frame = frames.get(framesUsed++);
+        frame.reset(array, from, to - from);
+        return frame;
+    }
+
+    private void pushBytes(byte[] src, int offset, int length) {
+        ensureCapacity(len + length);
+        System.arraycopy(src, offset, bytes, len, length);
+        len += length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
     }
 
 }
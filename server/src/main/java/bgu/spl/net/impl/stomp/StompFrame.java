@@ -1,88 +1,42 @@
 package bgu.spl.net.impl.stomp;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
+//outgoing frame built by the server. inbound frames are parsed lazily by RawFrame
 public class StompFrame {
 
     private String command;
     private Map<String, String> headers;
     private String body;
-    private String error; //if not null, frame is invalid 
 
     public StompFrame(String command, Map<String, String> headers, String body) {
         this.command = command;
         this.headers = headers;
         this.body = body;
-        this.error = null;
-    }
-
-    //parsing constructor
-    public StompFrame(String message){
-        this.headers = new HashMap<>();
-        this.body = "";
-        
-        //check for null message
-        if(message == null) {
-            this.error = "Empty message";
-            return;
-        }
-        
-        this.error = null;
-
-        //split message into lines
-        String[] lines = message.split("\n", -1);
-        //first line is command
-        this.command = lines[0].trim();
-        //parse headers
-        int i = 1;
-        while(i < lines.length && !lines[i].trim().isEmpty()) {            //split header into key and value
-        String[] header = lines[i].split(":", 2);            //ensure header has both key and value
-            if(header.length == 2) {  
-                //insert parameter and value into headers map
-                headers.put(header[0].trim(), header[1].trim());
-            }
-            i++; 
-        }
-        //concatenate body lines
-        i++; // skip empty line
-    
-    StringBuilder bodyBuilder = new StringBuilder();
-    while (i < lines.length) { 
-        String currLine = lines[i];
-        if (currLine.contains("\u0000")) {
-            bodyBuilder.append(currLine.replace("\u0000", ""));
-            break;
-        }
-        bodyBuilder.append(currLine);
-        if (i < lines.length - 1)
-             bodyBuilder.append("\n");
-        i++;
-        }
-    this.body = bodyBuilder.toString().trim();
     }
 
     public String getCommand() {
         return command;
     }
 
-    //flag to indicate if receipt is requested
-    public boolean receiptRequested(){
-        if(headers.containsKey("receipt")){
-            return true;
-        }
-        return false;
-    }
-
     public String getBody() {
         return body;
     }
-    
+
     public String getHeader(String key) {
         return headers.get(key);
     }
 
-    public String getError() {
-        return error;
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return a pooled buffer holding the encoded frame with its terminator, see {@link FrameWriter}
+     */
+    public ByteBuffer encode() {
+        return FrameWriter.write(this);
     }
 
     public String toString(){
@@ -91,88 +45,48 @@ public class StompFrame {
         * header1:value1
         * header2:value2
         * ... (all headers)
-        * 
+        *
         * body
         * \u0000
         */
-        String frame = command+"\n";
-        
+        StringBuilder frame = new StringBuilder(command).append('\n');
+
         for(Map.Entry<String, String> entry : headers.entrySet()){
-            frame+=entry.getKey()+":"+entry.getValue()+"\n";
+            frame.append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
         }
-        
-        frame += "\n" + 
-                body + "\n"; // we dont add the null char here bc the encoder will add it
-        return frame;
-    }
 
-    //automatic error frame generation based on stored error message
-    public StompFrame generateErrorFrame(){
-        return generateErrorFrame(getError());
+        frame.append('\n').append(body).append('\n'); // we dont add the null char here bc the encoder will add it
+        return frame.toString();
     }
 
-    //manual error frame generation with custom message
-    public StompFrame generateErrorFrame(String errorMessage){
+    //error frame with custom message, wrapping the frame that caused it
+    public static StompFrame error(String errorMessage, String originalFrame){
         Map<String, String> errHeaders = new HashMap<>();
-        errHeaders.put("message", errorMessage != null ? errorMessage : "unknown error");        
-        // Remove null byte to avoid terminating error frame early
-        String originalBody = this.toString().replace("\u0000", ""); 
+        errHeaders.put("message", errorMessage != null ? errorMessage : "unknown error");
 
         //wrap original frame and error message in the body
-        String errBody = "The message:\n-----\n" + originalBody + "\n-----\n" + errorMessage;
+        String errBody = "The message:\n-----\n" + originalFrame + "\n-----\n" + errorMessage;
         return new StompFrame("ERROR", errHeaders, errBody);
     }
 
-    //create receipt frame based on receipt header
-    public StompFrame generateReceiptFrame(){
+    //create receipt frame answering a receipt header
+    public static StompFrame receipt(String receiptId){
         Map<String, String> receiptHeaders = new HashMap<>();
-        //assume receipt header is present
-        receiptHeaders.put("receipt-id", headers.get("receipt"));
+        receiptHeaders.put("receipt-id", receiptId);
         return new StompFrame("RECEIPT", receiptHeaders, "");
     }
 
     //create connected frame after successful connection
-    public StompFrame generateConnectedFrame(String version){
+    public static StompFrame connected(String version){
         Map<String, String> connectedHeaders = new HashMap<>();
         connectedHeaders.put("version", version);
         return new StompFrame("CONNECTED", connectedHeaders, "");
     }
 
-    //check command correctness and delegate header tests
-    public boolean checkFrame(){
-        if(error != null) //check if parsing already found an error
-            return false;
-        
-        //check command presence
-        if(command == null || command.isEmpty()){
-            error = "missing command";
-            return false;
-        }
-
-        //check command validity and required headers
-        switch (getCommand()) {
-            case "CONNECT":
-                return checkParam("accept-version") && checkParam("host")
-                    && checkParam("login") && checkParam("passcode");
-            case "SEND":
-                return checkParam("destination");
-            case "SUBSCRIBE":
-                return checkParam("destination") && checkParam("id");
-            case "UNSUBSCRIBE":
-                return checkParam("id");
-            case "DISCONNECT":
-                return true; //user can either disonnect gracefully or not
-            default: //unknown command 
-                error = "unknown command";
-                return false;
-        }         
+    //create connected frame that also answers the client's heart-beat header
+    public static StompFrame connected(String version, long canSend, long wantReceive){
+        StompFrame connected = connected(version);
+        connected.headers.put("heart-beat", canSend + "," + wantReceive);
+        return connected;
     }
-    
-    //ensure required header is present in the frame
-    private boolean checkParam(String key){        
-        if(headers.containsKey(key))
-            return true;
-        error = "missing required header: " + key;
-        return false;
-    }    
 }
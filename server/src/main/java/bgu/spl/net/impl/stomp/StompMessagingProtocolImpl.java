@@ -1,54 +1,99 @@
 package bgu.spl.net.impl.stomp;
 import java.util.HashMap;
+import java.util.HashSet;
+import bgu.spl.net.srv.BroadcastStream;
+import bgu.spl.net.srv.ChannelRegistry;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionsImpl;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
+import bgu.spl.net.impl.data.User;
 
 //new class to implement the StompMessagingProtocol interface according to its new interface 
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<RawFrame> {
+
+    //heart-beats the server offers in CONNECTED, in milliseconds (0 disables that direction)
+    private static final long HEARTBEAT_SEND = Long.getLong("stomp.heartbeat.send", 10000);
+    private static final long HEARTBEAT_RECEIVE = Long.getLong("stomp.heartbeat.receive", 10000);
+    private static final int HEARTBEAT_GRACE_FACTOR = 2;
+    private static final int MAX_COVERED = 1024; //destinations remembered as covered by a wildcard subscription
     
     private boolean shouldTerminate = false;
-    private ConnectionsImpl<String> connections;
+    private ConnectionsImpl<RawFrame> connections;
     private int connectionId;
     private String username = null; // null as long as not logged in
+    private User user = null; //the logged in user, looked up once at login instead of on every frame
     private HashMap<Integer, String> channelIds = new HashMap<>(); //map of channel id to channel name
-    //Singleton Database instance
-    private final Database database = Database.getInstance();
+    private HashSet<String> channels = new HashSet<>(); //names in channelIds, so SEND checks a subscription without scanning
+    //destinations a wildcard subscription was found to cover, so a SEND matches the patterns once per destination.
+    //only grows while subscriptions are added, any UNSUBSCRIBE clears it
+    private HashSet<String> covered = new HashSet<>();
+    //a SEND whose body arrives in parts: passed on to the subscribers as it comes, and the receipt id to answer
+    //once it is complete. any other frame with such a body is collected and handled once it is whole
+    private BroadcastStream bodyStream = null;
+    private String bodyReceipt = null;
+    private byte[] collected = null;
+    private int collectedLength = 0;
+    //Singleton Database instance, unless one is given
+    private final Database database;
+    //conflated state of every game, for snapshot subscriptions
+    private final GameStates gameStates = GameStates.getInstance();
+
+    public StompMessagingProtocolImpl(){
+        this(Database.getInstance());
+    }
+
+    public StompMessagingProtocolImpl(Database database){
+        this.database = database;
+    }
 
-    public void start(int connectionId, Connections<String> connections){
+    public void start(int connectionId, Connections<RawFrame> connections){
         this.connectionId = connectionId;
-        this.connections = (ConnectionsImpl<String>) connections;
+        this.connections = (ConnectionsImpl<RawFrame>) connections;
     }
 
-    public void process(String message){
-        //create Stomp frame from the message
-        StompFrame frame = new StompFrame(message);
+    public void process(RawFrame frame){
+        //the frame is parsed lazily, only the parts the handler reads are ever decoded
+
+        //the next bytes of a large body, handed out apart from its frame
+        if(frame.isBodyPart()){
+            handleBodyPart(frame);
+            return;
+        }
 
         //check frame validity, if needed create and send error frame, then disconnect
         if(!frame.checkFrame()){
             StompFrame errorFrame = frame.generateErrorFrame();
-            connections.send(connectionId, errorFrame.toString());
+            connections.sendFrame(connectionId, errorFrame);
             connections.disconnect(connectionId);
             shouldTerminate = true;
             return;
         }
 
+        //a large body is passed on as it arrives when it is a plain SEND, otherwise collected first
+        if(frame.isStreamed() && !(frame.getCommand() == StompCommand.SEND && !gameStates.isEnabled()
+                && connections.canStreamBroadcast(frame.getContentLength()))){
+            collected = new byte[frame.getLength() + (int) frame.getContentLength()];
+            System.arraycopy(frame.array(), frame.getOffset(), collected, 0, frame.getLength());
+            collectedLength = frame.getLength();
+            return;
+        }
+
         switch (frame.getCommand()) {
-            case "SEND":
+            case SEND:
                 handleSend(frame);
                 break;
-            case "CONNECT":
+            case CONNECT:
                 handleConnect(frame);
                 break;
-            case "DISCONNECT":
+            case DISCONNECT:
                 handleDisconnect(frame);
                 break;
-            case "SUBSCRIBE":
+            case SUBSCRIBE:
                 handleSubscribe(frame);
                 break;
-            case "UNSUBSCRIBE":
+            case UNSUBSCRIBE:
                 handleUnsubscribe(frame);
                 break;
             default:
@@ -57,12 +102,21 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
     }
 
-    private void handleSend(StompFrame frame){
+    private void handleSend(RawFrame frame){
         String channel = frame.getHeader("destination");
         String filename = frame.getHeader("filename");
         
-        //check if user is logged in and subscribed to the channel
-        if(connections.isUserLoggedIn(connectionId) && connections.isUserSubscribed(connectionId, channel)) {
+        //messages go to one concrete destination, wildcards are only meaningful in SUBSCRIBE
+        if(ChannelRegistry.isPattern(channel)){
+            StompFrame errorFrame = frame.generateErrorFrame("Cannot send to a wildcard destination: " + channel);
+            connections.sendFrame(connectionId, errorFrame);
+            connections.disconnect(connectionId);
+            shouldTerminate = true;
+            return;
+        }
+
+        //check if user is logged in and subscribed to the channel, directly or through a wildcard
+        if(isLoggedIn() && isSubscribedTo(channel)) {
             // Attempt to track in SQL but DON'T fail the whole operation if it fails
             boolean dbSuccess = database.trackFileUpload(username, filename, channel);
             
@@ -73,25 +127,70 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             }
             
             //send message to all subscribers of the destination channel
-                connections.send(channel, frame.getBody());
+            if(frame.isStreamed()){
+                //the body is still arriving, its parts follow this frame, see handleBodyPart
+                bodyStream = connections.openBroadcast(connectionId, channel, (int) frame.getContentLength());
+                bodyReceipt = frame.getHeader("receipt");
+                return;
+            }
+            else if(gameStates.isEnabled()){
+                //the report is applied and its subscribers resolved under the game's lock, so a joining snapshot
+                //subscriber sees each report once. delivery happens after, publishers only queue up on the parsing
+                GameState state = gameStates.get(channel);
+                ConnectionsImpl.Broadcast broadcast;
+                synchronized(state){
+                    state.apply(frame.getBodyString());
+                    broadcast = connections.prepareBroadcast(channel, frame.array(), frame.getBodyOffset(), frame.getBodyLength(), frame.hasContentLength());
+                }
+                connections.deliver(broadcast);
+            }
+            else{
+                //the body is routed as the bytes it arrived in, a content-length body byte for byte
+                connections.broadcast(channel, frame.array(), frame.getBodyOffset(), frame.getBodyLength(), frame.hasContentLength());
+            }
 
                 
 
-                //send receipt if requested
+                //send receipt if requested, behind the MESSAGE the sender may get itself
                 if(frame.receiptRequested()){
-                    connections.send(connectionId, frame.generateReceiptFrame().toString());
+                    connections.sendAfterBroadcasts(connectionId, frame.encodeReceiptFrame());
                 }
         }
         else{ // user not logged in or isnt subscribed, send error frame and disconnect
             StompFrame errorFrame = frame.generateErrorFrame("User not logged in or not subscribed to channel: " + channel);
-            connections.send(connectionId, errorFrame.toString());
+            connections.sendFrame(connectionId, errorFrame);
             connections.disconnect(connectionId);
             shouldTerminate = true;
         }
         
     }
 
-    private void handleConnect(StompFrame frame){
+    private void handleBodyPart(RawFrame part){
+        if(bodyStream != null){
+            bodyStream.write(part.array(), part.getOffset(), part.getLength());
+            if(part.isLastPart()){
+                bodyStream.finish();
+                bodyStream = null;
+                //send receipt if requested, behind the MESSAGE the sender may get itself
+                if(bodyReceipt != null){
+                    connections.sendAfterBroadcasts(connectionId, FrameWriter.write(StompFrame.receipt(bodyReceipt)));
+                    bodyReceipt = null;
+                }
+            }
+        }
+        else if(collected != null){
+            System.arraycopy(part.array(), part.getOffset(), collected, collectedLength, part.getLength());
+            collectedLength += part.getLength();
+            if(part.isLastPart()){
+                RawFrame whole = new RawFrame(collected);
+                collected = null;
+                process(whole);
+            }
+        }
+        //otherwise the frame was refused at its headers and the connection is closing
+    }
+
+    private void handleConnect(RawFrame frame){
         String login = frame.getHeader("login");
         //register client in connections map
         LoginStatus connectionMessage = connections.connect(connectionId, login, frame.getHeader("passcode"));
@@ -99,12 +198,20 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         if(connectionMessage.equals(LoginStatus.LOGGED_IN_SUCCESSFULLY) // successful login 
             || connectionMessage.equals(LoginStatus.ADDED_NEW_USER)){ //new user added and logged in
             this.username = login;
+            this.user = database.getUserByConnectionId(connectionId);
             //read version from accept-version header
             String version = frame.getHeader("accept-version");
 
+            //negotiate heart-beats: each side uses the slower of what one can send and the other wants
+            long[] clientHeartBeat = frame.getHeartBeat();
+            long sendInterval = (HEARTBEAT_SEND == 0 || clientHeartBeat[1] == 0) ? 0 : Math.max(HEARTBEAT_SEND, clientHeartBeat[1]);
+            long receiveInterval = (HEARTBEAT_RECEIVE == 0 || clientHeartBeat[0] == 0) ? 0 : Math.max(HEARTBEAT_RECEIVE, clientHeartBeat[0]);
+
             //generate and send connected frame
-            StompFrame connectedFrame = frame.generateConnectedFrame(version);
-            connections.send(connectionId, connectedFrame.toString());
+            StompFrame connectedFrame = frame.generateConnectedFrame(version, HEARTBEAT_SEND, HEARTBEAT_RECEIVE);
+            connections.sendFrame(connectionId, connectedFrame);
+            //allow some slack for network delays before declaring the client dead
+            connections.setHeartbeat(connectionId, sendInterval, receiveInterval * HEARTBEAT_GRACE_FACTOR);
         }
         else { //error connecting, send error frame and disconnect
             String errMsg ="";
@@ -126,7 +233,7 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                     break;
             }
             StompFrame errorFrame = frame.generateErrorFrame(errMsg);
-            connections.send(connectionId, errorFrame.toString());
+            connections.sendFrame(connectionId, errorFrame);
             connections.disconnect(connectionId);
             shouldTerminate = true;
         }
@@ -134,81 +241,121 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         //receipt isn't an option for CONNECT frames
     }
 
-    private void handleDisconnect(StompFrame frame){
+    private void handleDisconnect(RawFrame frame){
         //send receipt if requested before disconnecting
         if(frame.receiptRequested()){
-            connections.send(connectionId, frame.generateReceiptFrame().toString());
+            connections.sendEncoded(connectionId, frame.encodeReceiptFrame());
         }
 
         channelIds.clear(); //clear subscription map
+        channels.clear();
+        covered.clear();
         shouldTerminate = true;
         //disconnect client
         connections.disconnect(connectionId);
     }
 
-    private void handleSubscribe(StompFrame frame){
-        if(connections.isUserLoggedIn(connectionId)){
+    private void handleSubscribe(RawFrame frame){
+        if(isLoggedIn()){
+            String channel = frame.getHeader("destination");
+            int subId = frame.getIntHeader("id");
             //we only allow clients to subscribe once to each channel
-            if(connections.isUserSubscribed(connectionId, frame.getHeader("destination"))){
+            if(connections.isUserSubscribed(connectionId, channel)){
                 //send error frame and disconnect
-                StompFrame errorFrame = frame.generateErrorFrame("User already subscribed to channel: " + frame.getHeader("destination"));
-                connections.send(connectionId, errorFrame.toString());
+                StompFrame errorFrame = frame.generateErrorFrame("User already subscribed to channel: " + channel);
+                connections.sendFrame(connectionId, errorFrame);
                 connections.disconnect(connectionId);
                 shouldTerminate = true;
             }
             // we require unique subscription ids per client
-            else if(channelIds.containsKey(Integer.parseInt(frame.getHeader("id")))){
+            else if(channelIds.containsKey(subId)){
                 //send error frame and disconnect
                 StompFrame errorFrame = frame.generateErrorFrame("Subscription id already in use: " + frame.getHeader("id"));
-                connections.send(connectionId, errorFrame.toString());
+                connections.sendFrame(connectionId, errorFrame);
                 connections.disconnect(connectionId);
                 shouldTerminate = true;
             }
             // user logged in, not subscribed yet and id not in use
             else{
                 //log client's channel -> id translation in subscription map
-                channelIds.put(Integer.parseInt(frame.getHeader("id")), frame.getHeader("destination"));
+                channelIds.put(subId, channel);
+                channels.add(channel);
                 //subscribe client to channel
-                connections.subscribe(connectionId, frame.getHeader("destination"), Integer.parseInt(frame.getHeader("id")));
+                if("true".equals(frame.getHeader("snapshot")) && gameStates.isEnabled() && !ChannelRegistry.isPattern(channel)){
+                    //catch up with a single MESSAGE holding the game's current state
+                    GameState state = gameStates.get(channel);
+                    synchronized(state){
+                        connections.subscribe(connectionId, channel, subId);
+                        if(state.getEvents() > 0){
+                            connections.sendMessage(connectionId, channel, subId, state.snapshot());
+                        }
+                    }
+                }
+                else{
+                    //optionally catch up on the channel's recent messages
+                    connections.subscribe(connectionId, channel, subId, frame.getCount("replay-from"), frame.getCount("replay-last"));
+                }
                 //send receipt if requested    
                 if(frame.receiptRequested()){
-                    connections.send(connectionId, frame.generateReceiptFrame().toString());
+                    connections.sendEncoded(connectionId, frame.encodeReceiptFrame());
                 }
             }
         }
         else{
             //send error frame and disconnect
             StompFrame errorFrame = frame.generateErrorFrame("User not logged in");
-            connections.send(connectionId, errorFrame.toString());
+            connections.sendFrame(connectionId, errorFrame);
             connections.disconnect(connectionId);
             shouldTerminate = true;
         }
     }
 
-    private void handleUnsubscribe(StompFrame frame){  
-        if(connections.isUserLoggedIn(connectionId)){
-            int subId = Integer.parseInt(frame.getHeader("id"));
+    private void handleUnsubscribe(RawFrame frame){  
+        if(isLoggedIn()){
+            int subId = frame.getIntHeader("id");
             //get channel name based on subscription id from client's subscription map
             String channel = channelIds.get(subId);
             //remove channel from client's subscription map
             channelIds.remove(subId);
+            channels.remove(channel);
+            covered.clear(); //the pattern that covered them may be gone
             //unsubscribe client from channel
             connections.unsubscribe(connectionId, channel);
             //send receipt if requested
             if(frame.receiptRequested()){
-                connections.send(connectionId, frame.generateReceiptFrame().toString());
+                connections.sendEncoded(connectionId, frame.encodeReceiptFrame());
             }
         }
         //user not logged in
         else{
             //send error frame and disconnect
             StompFrame errorFrame = frame.generateErrorFrame("User not logged in");
-            connections.send(connectionId, errorFrame.toString());
+            connections.sendFrame(connectionId, errorFrame);
             connections.disconnect(connectionId);
             shouldTerminate = true;
         }
     }
 
+    //the client's own subscriptions answer the common case, the shared index resolves wildcards
+    //the first time a destination is sent to
+    private boolean isSubscribedTo(String channel){
+        if(channels.contains(channel) || covered.contains(channel)){
+            return true;
+        }
+        if(!connections.isSubscribedTo(connectionId, channel)){
+            return false;
+        }
+        if(covered.size() >= MAX_COVERED){
+            covered.clear();
+        }
+        covered.add(channel);
+        return true;
+    }
+
+    private boolean isLoggedIn(){
+        return user != null && user.isLoggedIn();
+    }
+
     public boolean shouldTerminate(){ 
         return shouldTerminate; 
     }
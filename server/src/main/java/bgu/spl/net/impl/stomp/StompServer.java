@@ -7,7 +7,7 @@ public class StompServer {
     public static void main(String[] args) {
         //check for correct number of arguments
         if(args.length < 2){
-            System.out.println("required input: <port> <server type>");
+            System.out.println("required input: <port> <server type> [threads] [event loops]");
             return;
         }
 
@@ -18,6 +18,11 @@ public class StompServer {
         if(args.length > 2){ //if number of threads is specified
             nthreads = Integer.parseInt(args[2]);
         }
+
+        int nEventLoops = 0; //default is a single reactor loop doing both accept and I/O
+        if(args.length > 3){ //if number of selector loops is specified
+            nEventLoops = Integer.parseInt(args[3]);
+        }
         
         if(serverType.equals("tpc")){
             Server.threadPerClient(
@@ -27,9 +32,18 @@ public class StompServer {
             ).serve();
         }
         
+        else if(serverType.equals("vthreads")){ //thread per client on virtual threads
+            Server.virtualThreadPerClient(
+                port, 
+                () -> new StompMessagingProtocolImpl(), 
+                () -> new StompEncoderDecoder()
+            ).serve();
+        }
+
         else if(serverType.equals("reactor")){
             Server.reactor(
                 nthreads,
+                nEventLoops,
                 port, 
                 () -> new StompMessagingProtocolImpl(), 
                 () -> new StompEncoderDecoder()
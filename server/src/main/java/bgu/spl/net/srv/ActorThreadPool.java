@@ -1,76 +1,110 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Runs tasks so that tasks of the same actor never run concurrently and keep their submission order.
+ * Every actor owns a {@link Mailbox}: a lock-free queue plus a scheduled flag. A mailbox is handed to
+ * the executor only when it goes from idle to busy, and then runs a bounded batch of tasks per turn.
+ * In sharded mode every mailbox goes to the worker its affinity key hashes to, instead of a shared executor.
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
-    private final ExecutorService threads;
+    private static final int BATCH_SIZE = 16; //max tasks of one actor run per scheduling turn
 
+    private final ExecutorService threads; //null in sharded mode
+    private final ShardedExecutor shards; //null in shared mode
+
+    //the execution mode can be picked with system properties
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this(threads, Boolean.getBoolean("stomp.workers.sharded"),
+                Boolean.parseBoolean(System.getProperty("stomp.workers.workStealing", "true")));
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    public ActorThreadPool(int threads, boolean sharded, boolean workStealing) {
+        if (sharded) {
+            this.threads = null;
+            this.shards = new ShardedExecutor(threads, workStealing);
+        } else {
+            this.threads = Executors.newFixedThreadPool(threads);
+            this.shards = null;
         }
     }
 
-    public void shutdown() {
-        threads.shutdownNow();
+    //runs the mailboxes on the given executor, e.g. a fork-join pool
+    ActorThreadPool(ExecutorService executor) {
+        this.threads = executor;
+        this.shards = null;
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
+    public void submit(Mailbox mailbox, Runnable r) {
+        mailbox.tasks.add(r);
+        schedule(mailbox);
+    }
 
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
+    public void shutdown() {
+        if (shards != null) shards.shutdown();
+        else threads.shutdownNow();
+    }
 
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+    //mailboxes waiting per worker, each holding one or more tasks. in shared mode there is a single shared queue
+    public int[] getQueuedMailboxes() {
+        if (shards != null) {
+            return shards.getQueueLengths();
         }
-        return pendingRunnables;
+        if (threads instanceof ThreadPoolExecutor) {
+            return new int[]{((ThreadPoolExecutor) threads).getQueue().size()};
+        }
+        return new int[0];
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
+    //hands the mailbox to the executor, unless it is already scheduled or running
+    private void schedule(Mailbox mailbox) {
+        if (mailbox.scheduled.compareAndSet(false, true)) {
+            mailbox.pool = this;
             try {
-                r.run();
-            } finally {
-                complete(act);
+                if (shards != null) shards.execute(mailbox, mailbox.affinity);
+                else threads.execute(mailbox);
+            } catch (RejectedExecutionException ex) {
+                //pool was shut down, the server is closing
             }
-        });
+        }
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
+    /**
+     * The pending tasks of one actor. Many threads may submit, a single pool thread runs them at a time.
+     */
+    public static final class Mailbox implements Runnable {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final int affinity; //picks the worker in sharded mode
+        private volatile ActorThreadPool pool;
+
+        public Mailbox(int affinity) {
+            this.affinity = affinity;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    Runnable r = tasks.poll();
+                    if (r == null) break;
+                    r.run();
+                }
+            } finally {
+                scheduled.set(false);
+                //tasks added during the turn (or left over from the batch) need another turn
+                if (!tasks.isEmpty()) {
+                    pool.schedule(this);
+                }
             }
         }
     }
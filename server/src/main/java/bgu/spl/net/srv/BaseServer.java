@@ -14,7 +14,7 @@ public abstract class BaseServer<T> implements Server<T> {
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
     private ServerSocket sock;
-    private Connections<T> connections;
+    private ConnectionsImpl<T> connections;
 
     public BaseServer(
             int port,
@@ -52,12 +52,14 @@ public abstract class BaseServer<T> implements Server<T> {
                 //We added the connection to "connections" BEFORE executing the handler,
                 //to prevent for example a case where the thread started and client tries
                 //to login before his connection is registered
+                execute(handler.writer());
                 execute(handler);
             }
         } catch (IOException ex) {
         }
 
         System.out.println("server closed!!!");
+        connections.shutdown();
     }
 
     @Override
@@ -66,6 +68,7 @@ public abstract class BaseServer<T> implements Server<T> {
 			sock.close();
     }
 
-    protected abstract void execute(BlockingConnectionHandler<T>  handler);
+    //runs a connection's reader (the handler itself) or its writer
+    protected abstract void execute(Runnable task);
 
 }
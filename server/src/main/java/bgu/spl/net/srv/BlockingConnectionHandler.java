@@ -3,21 +3,41 @@ package bgu.spl.net.srv;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_BUFFER_SIZE = 1 << 13; //8k
+    private static final int WRITE_BUFFER_SIZE = 1 << 13; //8k
+    private static final byte[] CLOSE = new byte[0]; //queued by close(), tells the writer to flush and stop
+    private static final byte[] NOOP = new byte[0]; //only wakes the writer up
+    private static final byte[] HEARTBEAT = {'\n'};
+
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
     private volatile boolean connected = true;
     private final Connections<T> connections;
     private final int connectionId;
+    //outgoing frames, drained by this connection's own writer so senders never block on the socket
+    private final LinkedBlockingQueue<byte[]> outbox = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    //frames sent in pieces, in the order of their markers in the outbox, see openStream
+    private final Queue<Stream> streams = new ConcurrentLinkedQueue<>();
+    private volatile long heartbeatInterval = 0; //write an EOL after this much silence, 0 for never
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol,Connections<T> connections, int connectionId) {
         this.sock = sock;
@@ -29,19 +49,23 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void run() {
-        try (Socket sock = this.sock) { //just for automatic closing
+        try {
             int read;
+            byte[] readBuf = new byte[READ_BUFFER_SIZE]; //bulk reads straight from the socket, no extra buffering layer
+            List<T> decoded = new ArrayList<>();
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            InputStream in = sock.getInputStream();
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
+            while (!protocol.shouldTerminate() && connected && (read = in.read(readBuf)) >= 0) {
+                encdec.decode(readBuf, 0, read, decoded); //decode everything that arrived at once
+                for (T nextMessage : decoded) {
                     protocol.process(nextMessage);
                 }
+                decoded.clear();
             }
 
+        } catch (SocketTimeoutException ex) {
+            //no heart-beat or frame within the negotiated time, the peer is considered dead
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -52,25 +76,169 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     }
 
+    /**
+     * @return the loop writing this connection's outgoing frames. must be started along with the handler
+     */
+    public Runnable writer() {
+        return this::writeLoop;
+    }
+
+    //writes every queued frame, flushing once per batch instead of once per frame.
+    //the socket is closed here, after frames queued before close() (e.g. a last RECEIPT) went out
+    private void writeLoop() {
+        try (OutputStream out = new BufferedOutputStream(sock.getOutputStream(), WRITE_BUFFER_SIZE)) {
+            boolean closing = false;
+            while (!closing) {
+                long interval = heartbeatInterval;
+                byte[] frame = interval > 0 ? outbox.poll(interval, TimeUnit.MILLISECONDS) : outbox.take();
+                if (frame == null) { //nothing to send for a whole interval, keep the connection alive
+                    out.write(HEARTBEAT);
+                    out.flush();
+                    continue;
+                }
+                do {
+                    if (frame == CLOSE) {
+                        closing = true;
+                        break;
+                    }
+                    if (frame == NOOP) continue;
+                    if (!streams.isEmpty() && streams.peek().marker == frame) {
+                        if (!writeStream(out, streams.poll())) {
+                            closing = true;
+                            break;
+                        }
+                        continue;
+                    }
+                    out.write(frame);
+                    queuedBytes.addAndGet(-frame.length);
+                } while ((frame = outbox.poll()) != null);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("error sending message");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connected = false;
+            outbox.clear();
+            queuedBytes.set(0);
+            try {
+                sock.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    //writes a stream's pieces as they come, the frames queued behind its marker wait.
+    //returns false if the stream was aborted and the connection has to close
+    private boolean writeStream(OutputStream out, Stream stream) throws IOException, InterruptedException {
+        while (true) {
+            byte[] piece = stream.pieces.poll();
+            if (piece == null) {
+                out.flush(); //the rest of the frame may take a while
+                piece = stream.pieces.take();
+            }
+            if (piece == CLOSE) return false;
+            if (piece == NOOP) return true;
+            out.write(piece);
+            queuedBytes.addAndGet(-piece.length);
+        }
+    }
+
+    @Override
+    public void configureHeartbeat(long sendInterval, long receiveTimeout) {
+        heartbeatInterval = sendInterval; //picked up by the writer after its current wait
+        outbox.add(NOOP); //wake the writer up so the new interval applies right away
+        try {
+            sock.setSoTimeout((int) Math.min(Integer.MAX_VALUE, receiveTimeout)); //0 means no timeout
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         connected = false;
-        sock.close();
+        outbox.add(CLOSE);
+        for (Stream stream : streams) {
+            stream.pieces.add(CLOSE); //a writer waiting for pieces stops there
+        }
     }
 
     @Override
     public void send(T msg) {
         //IMPLEMENT IF NEEDED
-        if(msg != null){//check msg validity
-            synchronized(this){ //Synchronized to prevent mixed messeges from multiple threads
-                try {
-                    out.write(encdec.encode(msg));
-                    out.flush();
-                } catch (IOException e) {
-                    System.out.println("error sending message");
-                }
+        if(msg != null && connected){//check msg validity
+            byte[] encodedMsg = encdec.encode(msg);
+            //The writer keeps frames in order, so messages from multiple threads never mix
+            queuedBytes.addAndGet(encodedMsg.length);
+            outbox.add(encodedMsg);
+        }
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer frame) {
+        if (frame != null && connected) {
+            //copied on the sender's thread, so the pooled buffer is reused right away by the next send
+            byte[] encodedMsg = new byte[frame.remaining()];
+            frame.get(encodedMsg);
+            BufferPool.release(frame);
+            queuedBytes.addAndGet(encodedMsg.length);
+            outbox.add(encodedMsg);
+        } else {
+            BufferPool.release(frame);
+        }
+    }
+
+    /**
+     * The stream's marker takes its place in the outbox. Once the writer reaches it, it writes the pieces
+     * as they come until the stream is finished
+     */
+    @Override
+    public FrameStream openStream(int length) {
+        if (!connected) return null;
+        Stream stream = new Stream();
+        synchronized (streams) { //markers reach the writer in the order of the streams
+            streams.add(stream);
+            outbox.add(stream.marker);
+        }
+        return stream;
+    }
+
+    //a frame written in pieces. the end of its pieces is NOOP once finished, CLOSE if aborted
+    private class Stream implements FrameStream {
+        private final byte[] marker = new byte[0];
+        private final LinkedBlockingQueue<byte[]> pieces = new LinkedBlockingQueue<>();
+        private boolean done = false;
+
+        @Override
+        public void write(ByteBuffer piece) {
+            if (!done && connected) {
+                byte[] bytes = new byte[piece.remaining()];
+                piece.get(bytes);
+                queuedBytes.addAndGet(bytes.length);
+                pieces.add(bytes);
             }
-           
+            BufferPool.release(piece);
+        }
+
+        @Override
+        public void finish() {
+            if (done) return;
+            done = true;
+            pieces.add(NOOP);
         }
+
+        @Override
+        public void abort() {
+            if (done) return;
+            done = true;
+            pieces.add(CLOSE); //the writer closes the connection once the pieces before it are out
+        }
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.get();
     }
 }
@@ -0,0 +1,86 @@
+package bgu.spl.net.srv;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A broadcast whose body is passed on while it still arrives, opened by ConnectionsImpl.openBroadcast.
+ * The subscribers resolved when it was opened got the MESSAGE head right away, each part of the body is
+ * copied to them as it comes, and the terminator ends the frame. So the server never holds the whole body,
+ * only the parts still queued for slow subscribers. Until the frame ends, whatever else is sent to those
+ * subscribers waits behind it.
+ * The journal record, if the channel is journaled, is filled part by part and committed after the last one.
+ * A subscriber joining while the body arrives neither gets it live nor in its replay.
+ */
+public class BroadcastStream {
+
+    private static final byte[] TERMINATOR = {'\u0000'};
+
+    private final ConnectionsImpl<?> connections;
+    private final int publisherId;
+    private final FrameStream[] recipients; //null for those that did not take the frame
+    private final ChannelJournal.Reservation record; //null if the message is not journaled
+    private boolean done = false;
+
+    BroadcastStream(ConnectionsImpl<?> connections, int publisherId, FrameStream[] recipients, ChannelJournal.Reservation record) {
+        this.connections = connections;
+        this.publisherId = publisherId;
+        this.recipients = recipients;
+        this.record = record;
+    }
+
+    /**
+     * passes on the next part of the body, bytes[offset, offset + length). the bytes are copied
+     */
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        if (done || length == 0) return;
+        for (FrameStream recipient : recipients) {
+            if (recipient != null) {
+                ByteBuffer piece = BufferPool.lease(length);
+                piece.put(bytes, offset, length).flip();
+                recipient.write(piece);
+            }
+        }
+        if (record != null) {
+            record.write(bytes, offset, length);
+        }
+    }
+
+    /**
+     * the body is complete: ends the frame for every subscriber and commits the journal record
+     */
+    public synchronized void finish() {
+        if (done) return;
+        done = true;
+        for (FrameStream recipient : recipients) {
+            if (recipient != null) {
+                recipient.write(ByteBuffer.wrap(TERMINATOR).asReadOnlyBuffer());
+                recipient.finish();
+            }
+        }
+        if (record != null) {
+            try {
+                record.commit();
+            } catch (UncheckedIOException | IllegalStateException ex) {
+                // the live subscribers got the message, only its replay is lost
+                System.err.println("SERVER WARNING: Failed to journal a streamed message: " + ex.getMessage());
+            }
+        }
+        connections.streamClosed(publisherId, this);
+    }
+
+    /**
+     * the body will never be complete, e.g. the publisher went away. the subscribers got part of a frame,
+     * so their connections are closed once that part went out. the journal record is never committed
+     */
+    public synchronized void abort() {
+        if (done) return;
+        done = true;
+        for (FrameStream recipient : recipients) {
+            if (recipient != null) {
+                recipient.abort();
+            }
+        }
+        connections.streamClosed(publisherId, this);
+    }
+}
@@ -0,0 +1,210 @@
+package bgu.spl.net.srv;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pooled allocator of direct buffers, shared by the read and write paths of the reactor.
+ * Buffers come in a few size classes. Every platform thread keeps a small cache per class in front of
+ * a global pool. The total off-heap memory kept for reuse, thread caches included, is capped, so the pool
+ * shrinks back once a spike is over. Virtual threads are many and short lived, they use the global pool only.
+ * Leased and returned buffers are counted to make leaks visible.
+ * The pool remembers which buffers are out on lease, so a release of a buffer it did not hand out, e.g. a
+ * duplicate or slice of a pooled one, or of one that was already given back, is refused instead of
+ * putting the same memory in the pool twice.
+ */
+public final class BufferPool {
+
+    //size classes, smallest first: 1k, 8k, 64k
+    private static final int[] SIZE_CLASSES = {1 << 10, 1 << 13, 1 << 16};
+    private static final int THREAD_CACHE_SIZE = 16; //buffers per class cached by every thread
+    private static final long MAX_RETAINED_BYTES = Long.getLong("stomp.bufferPool.maxRetainedBytes", 64L << 20); //64m
+    private static final int LEASE_STRIPES = 64; //power of two
+
+    private static final List<ConcurrentLinkedQueue<ByteBuffer>> GLOBAL = new ArrayList<>(SIZE_CLASSES.length);
+    private static final ThreadLocal<ThreadCache> THREAD_CACHE = ThreadLocal.withInitial(ThreadCache::new);
+    //gives a dead thread's cached bytes back to the cap once its cache is collected
+    private static final Cleaner CLEANER = Cleaner.create();
+    //direct buffers currently out on lease, by identity: ByteBuffer.equals compares contents.
+    //striped by identity hash so threads rarely share a lock, an IdentityHashMap adds and removes without allocating
+    private static final List<IdentityHashMap<ByteBuffer, Boolean>> LEASED = new ArrayList<>(LEASE_STRIPES);
+
+    //idle memory kept for reuse, in the global pool and in the thread caches
+    private static final AtomicLong retainedBytes = new AtomicLong(0);
+    private static final LongAdder leased = new LongAdder();
+    private static final LongAdder returned = new LongAdder();
+    private static final LongAdder allocated = new LongAdder();
+    private static final LongAdder discarded = new LongAdder();
+    private static final LongAdder refused = new LongAdder();
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            GLOBAL.add(new ConcurrentLinkedQueue<>());
+        }
+        for (int i = 0; i < LEASE_STRIPES; i++) {
+            LEASED.add(new IdentityHashMap<>());
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * Leases a cleared buffer with room for at least size bytes.
+     * Sizes above the largest class get a plain heap buffer that is not pooled.
+     */
+    public static ByteBuffer lease(int size) {
+        int cls = sizeClassOf(size);
+        if (cls < 0) {
+            return ByteBuffer.allocate(size);
+        }
+        leased.increment();
+
+        ByteBuffer buff = THREAD_CACHE.get().poll(cls);
+        if (buff == null) {
+            buff = GLOBAL.get(cls).poll();
+        }
+        if (buff != null) {
+            retainedBytes.addAndGet(-buff.capacity());
+            buff.clear();
+        } else {
+            allocated.increment();
+            buff = ByteBuffer.allocateDirect(SIZE_CLASSES[cls]);
+        }
+
+        IdentityHashMap<ByteBuffer, Boolean> stripe = leaseStripe(buff);
+        synchronized (stripe) {
+            stripe.put(buff, Boolean.TRUE);
+        }
+        return buff;
+    }
+
+    /**
+     * Gives a leased buffer back. Heap buffers are ignored, so callers may release whatever they leased.
+     * A direct buffer that is not out on lease is refused and counted, see {@link #getRefused()}.
+     */
+    public static void release(ByteBuffer buff) {
+        if (buff == null || !buff.isDirect() || buff.isReadOnly()) {
+            return; //read-only views, e.g. of mapped files, are never ours
+        }
+        int cls = exactClassOf(buff.capacity());
+        if (cls < 0) {
+            return; //not one of ours
+        }
+        IdentityHashMap<ByteBuffer, Boolean> stripe = leaseStripe(buff);
+        boolean wasLeased;
+        synchronized (stripe) {
+            wasLeased = stripe.remove(buff) != null;
+        }
+        if (!wasLeased) {
+            refused.increment(); //a view of a pooled buffer, or released twice
+            return;
+        }
+        returned.increment();
+
+        //the buffer is kept only while the retained memory stays under the cap
+        if (retainedBytes.addAndGet(buff.capacity()) > MAX_RETAINED_BYTES) {
+            retainedBytes.addAndGet(-buff.capacity());
+            discarded.increment();
+            return; //left to the GC, which frees the native memory
+        }
+        if (!THREAD_CACHE.get().offer(cls, buff)) {
+            GLOBAL.get(cls).add(buff);
+        }
+    }
+
+    //buffers leased and not given back yet
+    public static long getOutstanding() {
+        return leased.sum() - returned.sum();
+    }
+
+    public static long getLeased() {
+        return leased.sum();
+    }
+
+    public static long getReturned() {
+        return returned.sum();
+    }
+
+    //direct buffers created because the pool was empty
+    public static long getAllocated() {
+        return allocated.sum();
+    }
+
+    //returned buffers dropped because the retained memory cap was reached
+    public static long getDiscarded() {
+        return discarded.sum();
+    }
+
+    //releases refused because the buffer was not out on lease, each one is a bug in the caller
+    public static long getRefused() {
+        return refused.sum();
+    }
+
+    //off-heap memory currently idle in the pool, thread caches included
+    public static long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    private static IdentityHashMap<ByteBuffer, Boolean> leaseStripe(ByteBuffer buff) {
+        return LEASED.get(System.identityHashCode(buff) & (LEASE_STRIPES - 1));
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) return i;
+        }
+        return -1;
+    }
+
+    private static int exactClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * One thread's buffers per size class. Its bytes count against the cap like the global pool's,
+     * and are given back to it once the thread died and its cache was collected.
+     */
+    private static final class ThreadCache {
+        private final List<ArrayDeque<ByteBuffer>> classes = new ArrayList<>(SIZE_CLASSES.length);
+        private final int limit; //buffers per class, 0 for a thread that does not cache
+        private final AtomicLong bytes = new AtomicLong(0); //atomic only so the cleaner sees the latest value
+
+        ThreadCache() {
+            limit = VirtualThreads.isVirtual(Thread.currentThread()) ? 0 : THREAD_CACHE_SIZE;
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                classes.add(new ArrayDeque<>(limit));
+            }
+            if (limit > 0) {
+                AtomicLong cached = bytes; //the cleanup must not reach the cache itself
+                CLEANER.register(this, () -> retainedBytes.addAndGet(-cached.get()));
+            }
+        }
+
+        ByteBuffer poll(int cls) {
+            ByteBuffer buff = classes.get(cls).poll();
+            if (buff != null) {
+                bytes.addAndGet(-buff.capacity());
+            }
+            return buff;
+        }
+
+        boolean offer(int cls, ByteBuffer buff) {
+            ArrayDeque<ByteBuffer> cache = classes.get(cls);
+            if (cache.size() >= limit) return false;
+            cache.push(buff);
+            bytes.addAndGet(buff.capacity());
+            return true;
+        }
+    }
+}
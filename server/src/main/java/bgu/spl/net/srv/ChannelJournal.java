@@ -0,0 +1,356 @@
+package bgu.spl.net.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import bgu.spl.net.impl.stomp.MessageFrame;
+
+/**
+ * Append-only journal of one channel's MESSAGE frames, stored in rolling memory-mapped segment files.
+ * A record holds the frame's shared bytes (everything but the subscription id), so a replay splices the
+ * subscriber's id in while copying straight out of the mapped pages.
+ * <p>
+ * Record layout: [length][crc32][message-id][head length][head][tail], length covering the whole record.
+ * Every segment keeps an in-memory index of its records' message ids and offsets, rebuilt by scanning
+ * the segment on startup. The scan stops at the first empty record, a torn write is dropped. A record
+ * whose checksum does not match is skipped: its length is written last, unless it was reserved for a frame
+ * whose body was still arriving (see {@link #reserve}) and that was never committed.
+ * A new segment is mapped small and remapped at double the size whenever it fills, up to the segment size,
+ * so a quiet channel does not hold a full segment of address space and disk.
+ */
+public class ChannelJournal {
+
+    private static final int RECORD_HEADER = 16;
+    private static final int INITIAL_SEGMENT_BYTES = 64 << 10; //64k
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>(); //oldest first, the last one is written to
+    private final CRC32 crc = new CRC32();
+    private boolean dirty = false; //appended to since the last force
+
+    ChannelJournal(File dir, int segmentBytes, int maxSegments) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create journal directory " + dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files); //names are zero padded first message ids
+            for (File file : files) {
+                segments.add(Segment.recover(file, crc));
+            }
+        }
+    }
+
+    /**
+     * @return highest message-id in the journal, -1 if it is empty
+     */
+    public synchronized long getLastMessageId() {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            if (segment.count > 0) return segment.ids[segment.count - 1];
+        }
+        return -1;
+    }
+
+    /**
+     * writes the frame to the active segment, rolling to a new one when it is full.
+     * durable once the journal's next group commit forces it
+     */
+    public synchronized void append(MessageFrame frame) throws IOException {
+        int length = RECORD_HEADER + frame.getSharedLength();
+        Segment active = segmentFor(frame.getMessageId(), length);
+        int at = active.position;
+        ByteBuffer record = active.map.duplicate();
+        record.position(at + RECORD_HEADER);
+        frame.putShared(record);
+
+        ByteBuffer payload = active.map.duplicate();
+        payload.position(at + RECORD_HEADER).limit(at + length);
+        crc.reset();
+        crc.update(payload);
+
+        record.position(at);
+        record.putInt(0); //length goes in last, a half written record never looks complete
+        record.putInt((int) crc.getValue());
+        record.putInt(frame.getMessageId());
+        record.putInt(frame.getHeadLength());
+        active.map.putInt(at, length);
+
+        active.index(frame.getMessageId(), at);
+        active.position = at + length;
+        dirty = true;
+    }
+
+    /**
+     * Starts the record of a streamed frame (see MessageFrame.streamed) whose body of bodyLength bytes is still
+     * arriving. The record takes its place now, so records stay in message-id order, and is filled through the
+     * returned reservation. Replays and recovery only see it once it is committed
+     */
+    public synchronized Reservation reserve(MessageFrame frame, int bodyLength) throws IOException {
+        int length = RECORD_HEADER + frame.getSharedLength() + bodyLength + 1;
+        Segment active = segmentFor(frame.getMessageId(), length);
+        int at = active.position;
+        ByteBuffer record = active.map.duplicate();
+        record.position(at + RECORD_HEADER);
+        frame.putShared(record);
+        Reservation reservation = new Reservation(active, at, length, frame.getMessageId());
+        ByteBuffer shared = active.map.duplicate();
+        shared.position(at + RECORD_HEADER).limit(record.position());
+        reservation.crc.update(shared);
+        reservation.filled = record.position() - at;
+
+        //the length goes in first, so a record that is never committed is skipped on recovery, not taken as the end
+        record.position(at);
+        record.putInt(length);
+        record.putInt(0);
+        record.putInt(frame.getMessageId());
+        record.putInt(frame.getHeadLength());
+        active.position = at + length;
+        return reservation;
+    }
+
+    //the segment the next record of the given length goes to, grown or rolled as needed. caller holds the lock
+    private Segment segmentFor(int messageId, int length) throws IOException {
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active != null && active.position + length > active.map.capacity()) {
+            if (active.position + length <= segmentBytes) {
+                active.grow(Math.min(segmentBytes, Math.max(active.map.capacity() * 2, active.position + length)));
+            } else {
+                active = null; //full, the record starts the next segment
+            }
+        }
+        if (active == null) {
+            active = roll(messageId, length);
+        }
+        return active;
+    }
+
+    /**
+     * A record reserved for a frame whose body is still arriving. The body is written as it comes,
+     * commit adds the terminator and makes the record part of the journal
+     */
+    public class Reservation {
+        private final Segment segment;
+        private final int at;
+        private final int length;
+        private final int messageId;
+        private final CRC32 crc = new CRC32(); //of the payload written so far
+        private int filled; //bytes of the record written so far, header included
+
+        private Reservation(Segment segment, int at, int length, int messageId) {
+            this.segment = segment;
+            this.at = at;
+            this.length = length;
+            this.messageId = messageId;
+        }
+
+        //the next bytes of the body
+        public void write(byte[] bytes, int offset, int count) {
+            synchronized (ChannelJournal.this) { //the segment's mapping is replaced when it grows
+                if (filled + count > length - 1) {
+                    throw new IllegalStateException("more body than reserved for message " + messageId);
+                }
+                ByteBuffer body = segment.map.duplicate();
+                body.position(at + filled);
+                body.put(bytes, offset, count);
+                crc.update(bytes, offset, count);
+                filled += count;
+            }
+        }
+
+        //the body is complete: the record becomes visible to replays, durable with the next force
+        public void commit() {
+            synchronized (ChannelJournal.this) {
+                if (filled != length - 1) {
+                    throw new IllegalStateException("body of message " + messageId + " is incomplete");
+                }
+                segment.map.put(at + filled, (byte) '\u0000');
+                crc.update(0);
+                segment.map.putInt(at + 4, (int) crc.getValue());
+                segment.index(messageId, at);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * @return the stored frames with a message-id of at least firstId, oldest first, encoded for the subscription
+     */
+    public synchronized List<ByteBuffer> replayFrom(long firstId, int subscriptionId) {
+        List<ByteBuffer> replay = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.count == 0 || segment.ids[segment.count - 1] < firstId) continue;
+            int i = Arrays.binarySearch(segment.ids, 0, segment.count, (int) Math.min(Integer.MAX_VALUE, firstId));
+            for (i = i >= 0 ? i : -i - 1; i < segment.count; i++) {
+                replay.add(segment.encode(i, subscriptionId));
+            }
+        }
+        return replay;
+    }
+
+    /**
+     * @return the newest stored frames, at most count of them, oldest first, encoded for the subscription
+     */
+    public synchronized List<ByteBuffer> replayLast(long count, int subscriptionId) {
+        //find where the last count records start, walking back from the newest segment
+        int first = segments.size();
+        long skip = 0;
+        long total = 0;
+        while (first > 0 && total < count) {
+            first--;
+            total += segments.get(first).count;
+        }
+        if (total > count) skip = total - count;
+
+        List<ByteBuffer> replay = new ArrayList<>();
+        for (int s = first; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            for (int i = 0; i < segment.count; i++) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                replay.add(segment.encode(i, subscriptionId));
+            }
+        }
+        return replay;
+    }
+
+    /**
+     * forces everything appended since the last call to disk. called by the journal's flusher
+     */
+    void force() {
+        List<MappedByteBuffer> toForce = new ArrayList<>(2);
+        synchronized (this) {
+            if (!dirty) return;
+            dirty = false;
+            //a segment rolled since the last force may still hold unforced records.
+            //the mappings are taken under the lock, a growing segment replaces its own
+            for (Segment segment : segments.subList(Math.max(0, segments.size() - 2), segments.size())) {
+                toForce.add(segment.map);
+            }
+        }
+        for (MappedByteBuffer map : toForce) {
+            map.force();
+        }
+    }
+
+    //starts a new segment, dropping the oldest ones past the retention limit. caller holds the lock
+    private Segment roll(int firstId, int recordLength) throws IOException {
+        Segment previous = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (previous != null) {
+            previous.map.force(); //a full segment is made durable right away
+        }
+        File file = new File(dir, String.format("%020d%s", Integer.toUnsignedLong(firstId), SEGMENT_SUFFIX));
+        Segment segment = Segment.create(file, Math.max(Math.min(segmentBytes, INITIAL_SEGMENT_BYTES), recordLength));
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            if (!oldest.file.delete()) {
+                System.err.println("journal: could not delete " + oldest.file);
+            } //the mapping itself goes away once the buffer is collected
+        }
+        return segment;
+    }
+
+    /**
+     * One mapped segment file and the index of the records in it.
+     */
+    private static class Segment {
+        private final File file;
+        private MappedByteBuffer map; //replaced when the segment grows, only under the journal's lock
+        private int position = 0; //end of the last complete record
+        private int count = 0;
+        private int[] ids = new int[64];
+        private int[] offsets = new int[64];
+
+        private Segment(File file, MappedByteBuffer map) {
+            this.file = file;
+            this.map = map;
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            return new Segment(file, map(file, size));
+        }
+
+        //extends the file and maps it whole again. the records written so far are in the file's pages,
+        //which the new mapping shares, and the old one goes away once the buffer is collected
+        void grow(int size) throws IOException {
+            map = map(file, size);
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel ch = raf.getChannel()) {
+                raf.setLength(size); //zero filled, an unwritten record reads as length 0
+                return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        //maps an existing segment and indexes its complete records
+        static Segment recover(File file, CRC32 crc) throws IOException {
+            Segment segment;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel ch = raf.getChannel()) {
+                segment = new Segment(file, ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size()));
+            }
+            MappedByteBuffer map = segment.map;
+            int at = 0;
+            while (at + RECORD_HEADER <= map.capacity()) {
+                int length = map.getInt(at);
+                if (length < RECORD_HEADER || at + length > map.capacity()) break;
+                ByteBuffer payload = map.duplicate();
+                payload.position(at + RECORD_HEADER).limit(at + length);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() == map.getInt(at + 4)) {
+                    segment.index(map.getInt(at + 8), at);
+                }
+                at += length;
+            }
+            segment.position = at;
+            return segment;
+        }
+
+        //records are indexed in message-id order, a reserved one may be committed after newer records
+        void index(int messageId, int offset) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            int i = count;
+            if (count > 0 && ids[count - 1] > messageId) {
+                i = -Arrays.binarySearch(ids, 0, count, messageId) - 1;
+                System.arraycopy(ids, i, ids, i + 1, count - i);
+                System.arraycopy(offsets, i, offsets, i + 1, count - i);
+            }
+            ids[i] = messageId;
+            offsets[i] = offset;
+            count++;
+        }
+
+        //the i-th record as a pooled frame for the subscription, copied straight from the mapped pages
+        ByteBuffer encode(int i, int subscriptionId) {
+            int at = offsets[i];
+            int length = map.getInt(at);
+            int headLength = map.getInt(at + 12);
+            ByteBuffer head = map.duplicate();
+            head.position(at + RECORD_HEADER).limit(at + RECORD_HEADER + headLength);
+            ByteBuffer tail = map.duplicate();
+            tail.position(at + RECORD_HEADER + headLength).limit(at + length);
+            return MessageFrame.encodeFor(head, subscriptionId, tail);
+        }
+    }
+}
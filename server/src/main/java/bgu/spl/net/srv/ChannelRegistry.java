@@ -0,0 +1,332 @@
+package bgu.spl.net.srv;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscribers of every channel, kept as packed int arrays of (connectionId, subscriptionId) pairs.
+ * Subscriptions change rarely compared to broadcasts, so a change copies the channel's array and swaps it in,
+ * while a broadcast reads the current array as a snapshot and walks it without boxing or iterators.
+ * Arrays handed out by {@link #subscribers(String)} are never modified afterwards.
+ * <p>
+ * Destinations are hierarchical, segments are separated by '/'. A subscription may use whole-segment wildcards:
+ * '*' matches exactly one segment and '**' matches any number of segments, including none.
+ * Exact subscriptions stay in a hash map, wildcard ones live in a segment trie. The subscribers a destination
+ * resolves to are cached, and a cached entry is only trusted while both the destination's exact array and
+ * the trie are unchanged, so a broadcast to a known destination costs about as much as an exact match.
+ */
+public class ChannelRegistry {
+
+    public static final String SEPARATOR = "/";
+    public static final String ANY_SEGMENT = "*";
+    public static final String ANY_SEGMENTS = "**";
+
+    private static final int[] EMPTY = new int[0];
+    static final int MAX_CACHED_DESTINATIONS = 4096;
+
+    //channel name to its packed subscribers: [conn0, sub0, conn1, sub1, ...]
+    private final ConcurrentHashMap<String, int[]> channels = new ConcurrentHashMap<>();
+
+    //wildcard subscriptions, guarded by the trie's lock
+    private final Node wildcards = new Node();
+    private int wildcardSubscriptions = 0;
+    //bumped on every wildcard change, cached resolutions made before it are stale
+    private volatile long wildcardVersion = 0;
+    private volatile boolean hasWildcards = false;
+
+    //destination to the subscribers it resolved to, exact and wildcard ones together
+    private final ConcurrentHashMap<String, Resolved> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * adds the connection to the channel, or replaces its subscription id if it is already there
+     */
+    public void add(String channel, int connectionId, int subscriptionId) {
+        if (isPattern(channel)) {
+            synchronized (wildcards) {
+                Node node = wildcards;
+                for (String segment : split(channel)) {
+                    node = node.children.computeIfAbsent(segment, k -> new Node());
+                }
+                int before = node.subscribers.length;
+                node.subscribers = added(node.subscribers, connectionId, subscriptionId);
+                wildcardSubscriptions += (node.subscribers.length - before) / 2;
+                wildcardsChanged();
+            }
+            return;
+        }
+        //compute is atomic per channel, concurrent changes to one channel never overwrite each other
+        channels.compute(channel, (k, subscribers) -> added(subscribers, connectionId, subscriptionId));
+    }
+
+    /**
+     * removes the connection from the channel, dropping the channel once it has no subscribers
+     */
+    public void remove(String channel, int connectionId) {
+        if (isPattern(channel)) {
+            synchronized (wildcards) {
+                removePattern(wildcards, split(channel), 0, connectionId);
+                wildcardsChanged();
+            }
+            return;
+        }
+        channels.computeIfPresent(channel, (k, subscribers) -> {
+            int[] updated = removed(subscribers, connectionId);
+            return updated.length == 0 ? null : updated;
+        });
+    }
+
+    /**
+     * @return snapshot of the subscribers a message sent to the destination goes to, as (connectionId, subscriptionId)
+     * pairs, empty if none. A connection appears once for every subscription matching the destination. must not be modified
+     */
+    public int[] subscribers(String destination) {
+        int[] exact = channels.get(destination);
+        if (!hasWildcards) {
+            return exact != null ? exact : EMPTY; //plain lookup while nobody uses wildcards
+        }
+
+        long version = wildcardVersion;
+        Resolved cached = resolved.get(destination);
+        if (cached != null && cached.exact == exact && cached.version == version) {
+            if (!cached.used) {
+                cached.used = true; //only written once per eviction pass, hot entries are not rewritten on every hit
+            }
+            return cached.subscribers;
+        }
+
+        int[] matching;
+        synchronized (wildcards) {
+            version = wildcardVersion; //the trie cannot change while we hold the lock
+            matching = match(split(destination));
+        }
+        int[] all = exact == null ? matching : concat(exact, matching);
+
+        if (resolved.size() >= MAX_CACHED_DESTINATIONS) {
+            evictOne();
+        }
+        resolved.put(destination, new Resolved(exact, version, all));
+        return all;
+    }
+
+    /**
+     * @return true if the channel, or the wildcard pattern, has at least one subscriber
+     */
+    public boolean hasSubscribers(String channel) {
+        if (!isPattern(channel)) {
+            return channels.containsKey(channel);
+        }
+        synchronized (wildcards) {
+            Node node = wildcards;
+            for (String segment : split(channel)) {
+                node = node.children.get(segment);
+                if (node == null) return false;
+            }
+            return node.subscribers.length > 0;
+        }
+    }
+
+    public int channelCount() {
+        return channels.size();
+    }
+
+    /**
+     * @return true if the destination uses a wildcard segment
+     */
+    public static boolean isPattern(String destination) {
+        //checked on every SEND, so the segments are compared in place instead of split out
+        int start = 0;
+        while (start <= destination.length()) {
+            int end = destination.indexOf(SEPARATOR, start);
+            if (end < 0) end = destination.length();
+            int length = end - start;
+            if ((length == ANY_SEGMENT.length() && destination.startsWith(ANY_SEGMENT, start))
+                    || (length == ANY_SEGMENTS.length() && destination.startsWith(ANY_SEGMENTS, start))) {
+                return true;
+            }
+            start = end + SEPARATOR.length();
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the destination is covered by the subscription, which may be exact or a wildcard pattern
+     */
+    public static boolean matches(String subscription, String destination) {
+        if (!isPattern(subscription)) {
+            return subscription.equals(destination);
+        }
+        return matches(split(subscription), 0, split(destination), 0);
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] segments, int s) {
+        if (p == pattern.length) return s == segments.length;
+        if (pattern[p].equals(ANY_SEGMENTS)) {
+            for (int skip = s; skip <= segments.length; skip++) {
+                if (matches(pattern, p + 1, segments, skip)) return true;
+            }
+            return false;
+        }
+        if (s == segments.length) return false;
+        return (pattern[p].equals(ANY_SEGMENT) || pattern[p].equals(segments[s])) && matches(pattern, p + 1, segments, s + 1);
+    }
+
+    private static String[] split(String destination) {
+        return destination.split(SEPARATOR, -1);
+    }
+
+    //subscribers of every pattern matching the segments. caller holds the trie's lock
+    private int[] match(String[] segments) {
+        Set<Node> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+        collect(wildcards, segments, 0, reached);
+
+        int length = 0;
+        for (Node node : reached) {
+            length += node.subscribers.length;
+        }
+        if (length == 0) return EMPTY;
+        int[] all = new int[length];
+        int at = 0;
+        for (Node node : reached) {
+            System.arraycopy(node.subscribers, 0, all, at, node.subscribers.length);
+            at += node.subscribers.length;
+        }
+        return all;
+    }
+
+    //walks the trie along the segments, a pattern is reached at most once even if it matches in several ways
+    private static void collect(Node node, String[] segments, int at, Set<Node> reached) {
+        if (at == segments.length && node.subscribers.length > 0) {
+            reached.add(node);
+        }
+        Node anySegments = node.children.get(ANY_SEGMENTS);
+        if (anySegments != null) {
+            for (int skip = at; skip <= segments.length; skip++) {
+                collect(anySegments, segments, skip, reached);
+            }
+        }
+        if (at == segments.length) return;
+        Node literal = node.children.get(segments[at]);
+        if (literal != null) {
+            collect(literal, segments, at + 1, reached);
+        }
+        Node anySegment = node.children.get(ANY_SEGMENT);
+        if (anySegment != null) {
+            collect(anySegment, segments, at + 1, reached);
+        }
+    }
+
+    //removes the subscription and prunes the branches it leaves empty. caller holds the trie's lock
+    private boolean removePattern(Node node, String[] segments, int at, int connectionId) {
+        if (at == segments.length) {
+            int before = node.subscribers.length;
+            node.subscribers = removed(node.subscribers, connectionId);
+            wildcardSubscriptions -= (before - node.subscribers.length) / 2;
+        } else {
+            Node child = node.children.get(segments[at]);
+            if (child != null && removePattern(child, segments, at + 1, connectionId)) {
+                node.children.remove(segments[at]);
+            }
+        }
+        return node.subscribers.length == 0 && node.children.isEmpty();
+    }
+
+    //second chance: entries hit since the last pass are spared once, the first one that was not is dropped.
+    //a full cache of hot destinations keeps all of them but one, instead of rebuilding every one
+    private void evictOne() {
+        for (Iterator<Resolved> it = resolved.values().iterator(); it.hasNext(); ) {
+            Resolved entry = it.next();
+            if (!entry.used) {
+                it.remove();
+                return;
+            }
+            entry.used = false;
+        }
+        //every entry was hit since the last pass, they are all unmarked now
+        Iterator<Resolved> it = resolved.values().iterator();
+        if (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    //number of destinations whose subscribers are cached
+    int cachedDestinations() {
+        return resolved.size();
+    }
+
+    //caller holds the trie's lock
+    private void wildcardsChanged() {
+        hasWildcards = wildcardSubscriptions > 0;
+        wildcardVersion++;
+        resolved.clear();
+    }
+
+    private static int[] added(int[] subscribers, int connectionId, int subscriptionId) {
+        if (subscribers == null || subscribers.length == 0) {
+            return new int[]{connectionId, subscriptionId};
+        }
+        int at = indexOf(subscribers, connectionId);
+        int[] updated;
+        if (at >= 0) {
+            if (subscribers[at + 1] == subscriptionId) return subscribers;
+            updated = subscribers.clone();
+            updated[at + 1] = subscriptionId;
+        } else {
+            updated = Arrays.copyOf(subscribers, subscribers.length + 2);
+            updated[subscribers.length] = connectionId;
+            updated[subscribers.length + 1] = subscriptionId;
+        }
+        return updated;
+    }
+
+    private static int[] removed(int[] subscribers, int connectionId) {
+        int at = indexOf(subscribers, connectionId);
+        if (at < 0) return subscribers;
+        if (subscribers.length == 2) return EMPTY;
+        int[] updated = new int[subscribers.length - 2];
+        System.arraycopy(subscribers, 0, updated, 0, at);
+        System.arraycopy(subscribers, at + 2, updated, at, subscribers.length - at - 2);
+        return updated;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        if (second.length == 0) return first;
+        int[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    private static int indexOf(int[] subscribers, int connectionId) {
+        for (int i = 0; i < subscribers.length; i += 2) {
+            if (subscribers[i] == connectionId) return i;
+        }
+        return -1;
+    }
+
+    //one segment of the wildcard trie, only touched under the trie's lock
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private int[] subscribers = EMPTY; //subscriptions whose pattern ends here
+    }
+
+    //subscribers a destination resolved to, valid while its exact array and the trie are the ones it was built from
+    private static class Resolved {
+        private final int[] exact;
+        private final long version;
+        private final int[] subscribers;
+        //hit since the eviction last passed it. races only cost an extra rebuild or a late eviction
+        private boolean used;
+
+        Resolved(int[] exact, long version, int[] subscribers) {
+            this.exact = exact;
+            this.version = version;
+            this.subscribers = subscribers;
+        }
+    }
+}
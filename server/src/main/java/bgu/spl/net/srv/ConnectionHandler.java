@@ -6,6 +6,8 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +21,60 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a frame that is already encoded, terminator included, skipping the encoder.
+     * The handler takes ownership of the buffer and gives pooled buffers back once they are written.
+     */
+    void sendEncoded(ByteBuffer frame);
+
+    /**
+     * @return number of bytes queued for this connection and not yet written to its socket
+     */
+    default long getQueuedBytes() {
+        return 0;
+    }
+
+    /**
+     * Turns on STOMP heart-beating for this connection, as negotiated by CONNECT/CONNECTED
+     *
+     * @param sendInterval send a heart-beat after this many milliseconds without outgoing data, 0 for never
+     * @param receiveTimeout drop the connection after this many milliseconds without incoming data, 0 for never
+     */
+    default void configureHeartbeat(long sendInterval, long receiveTimeout) {
+    }
+
+    /**
+     * Starts a frame of the given size that is sent in pieces, see {@link FrameStream}.
+     * This default collects the pieces and sends the frame whole once it is finished, frames sent meanwhile
+     * may go out before it
+     *
+     * @param length size of the whole frame, terminator included
+     * @return the stream, or null if the connection does not take the frame
+     */
+    default FrameStream openStream(int length) {
+        ByteBuffer frame = BufferPool.lease(length);
+        return new FrameStream() {
+            @Override
+            public void write(ByteBuffer piece) {
+                frame.put(piece);
+                BufferPool.release(piece);
+            }
+
+            @Override
+            public void finish() {
+                frame.flip();
+                sendEncoded(frame);
+            }
+
+            @Override
+            public void abort() {
+                BufferPool.release(frame);
+                try {
+                    close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+    }
+
 }
@@ -1,32 +1,73 @@
 package bgu.spl.net.srv;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
 import bgu.spl.net.impl.data.User;
+import bgu.spl.net.impl.stomp.MessageFrame;
 import bgu.spl.net.impl.stomp.StompFrame;
 
 //new class implemented according to page 9 of the assignment
 public class ConnectionsImpl<T> implements Connections<T> {
-    //Singleton Database instance
-    private final Database database = Database.getInstance();
+    //per-channel history kept for replay on SUBSCRIBE, 0 messages turns it off
+    private static final int HISTORY_MESSAGES = Integer.getInteger("stomp.history.messages", 0);
+    private static final long HISTORY_BYTES = Long.getLong("stomp.history.bytes", 1L << 20); //1m per channel
+    //past this many channels with a history, the rings of channels without subscribers are dropped,
+    //first those not written to for the idle time
+    private static final int HISTORY_CHANNELS = Integer.getInteger("stomp.history.maxChannels", 4096);
+    private static final long HISTORY_IDLE_MS = Long.getLong("stomp.history.idleMs", 10 * 60 * 1000); //10 minutes
+
+    //Singleton Database instance, unless one is given
+    private final Database database;
     
-    //All active connections. The key is the connectionId
-    private ConcurrentHashMap<Integer, UserSession<T>> sessions = new ConcurrentHashMap<>();
+    //All active connections, indexed by connectionId so a send never boxes the id
+    private final SessionTable<UserSession<T>> sessions = new SessionTable<>();
+
+    // channel name to its subscribers
+    // subscribers are represented as packed <connectionId, subscriptionId> pairs
+    private final ChannelRegistry channelToSubscribers = new ChannelRegistry();
 
-    // map of channel name to its subscribers
-    // subscribers are represented as <connectionId, subscriptionId>
-    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, Integer>> channelToSubscribers = new ConcurrentHashMap<>();
+    // reverse index: map of connectionId to the channels it is subscribed to,
+    // so disconnecting only touches the channels the connection actually joined
+    private ConcurrentHashMap<Integer, Set<String>> connectionToChannels = new ConcurrentHashMap<>();
     
-    //Used for generating unique message ids for broadcast messages
-    private AtomicInteger messageIdCounter = new AtomicInteger(0);
+    //recent messages of every channel, only used when history is turned on
+    private final ConcurrentHashMap<String, HistoryRing> histories = new ConcurrentHashMap<>();
+
+    //delivers broadcasts, in parallel for very large channels
+    private final FanOut fanOut = new FanOut(this);
+    
+    //durable per-channel journal, null unless turned on
+    private final Journal journal = Journal.fromSystemProperties();
+
+    //Used for generating unique message ids for broadcast messages, continuing after the journal's last one
+    private AtomicInteger messageIdCounter = new AtomicInteger(journal == null ? 0 : (int) (journal.getLastMessageId() + 1));
     
     //Used for generating unique connection ids
     private AtomicInteger connectionIdCounter = new AtomicInteger(0);
 
+    //links to other broker processes, null unless federation is turned on.
+    //declared last, peers may deliver messages as soon as it starts
+    private final Federation federation = Federation.fromSystemProperties(this, channelToSubscribers);
+
+    public ConnectionsImpl() {
+        this(Database.getInstance());
+    }
+
+    public ConnectionsImpl(Database database) {
+        this.database = database;
+    }
+
     //code for user connection to socket, not necessarily logging in
     public void addConnection(int connectionId, ConnectionHandler<T> handler) {
         // We create a new session for this ID and handler.
@@ -49,36 +90,275 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return false; 
     }
     
-    //send a message to all online users subscribed to a specific channel.
+    //send a message to all online users subscribed to a specific channel. the message's text is the body
     @Override
     public void send(String channel, T msg) {
         if (msg == null || channel == null) return;
+        byte[] body = String.valueOf(msg).getBytes(StandardCharsets.UTF_8);
+        broadcast(channel, body, 0, body.length);
+    }
 
-        // Get all subscribers for this channel. 
-        // subscribers are represented as <connectionId, subscriptionId>
-        ConcurrentHashMap<Integer, Integer> subscribers = channelToSubscribers.get(channel);
-        
-        if (subscribers != null) {
-            // Generate one message-id for the entire broadcast
-            int messageId = generateMessageId();
-
-            // Iterate over each online subscriber and send a personalized frame
-            for (Map.Entry<Integer, Integer> entry : subscribers.entrySet()) {
-                int connectionId = entry.getKey();
-                int subId = entry.getValue();   
-               
-                Map<String,String> headers = new HashMap<>();
-                headers.put("subscription", ""+subId);
-                headers.put("message-id", ""+messageId);
-                headers.put("destination", ""+channel);
-
-                StompFrame frame = new StompFrame("MESSAGE", headers, (String)msg);
-                
-                send(connectionId, (T) frame.toString());
+    //send the text body bytes[offset, offset + length) to all online users subscribed to a specific channel
+    public void broadcast(String channel, byte[] bytes, int offset, int length) {
+        broadcast(channel, bytes, offset, length, false);
+    }
+
+    //same, binary bodies are delivered exactly as given, see MessageFrame
+    public void broadcast(String channel, byte[] bytes, int offset, int length, boolean binary) {
+        if (bytes == null || channel == null) return;
+        if (isRecording()) {
+            deliver(prepareBroadcast(channel, bytes, offset, length, binary));
+            return;
+        }
+        // nothing is recorded in between, so the subscribers are resolved and served without a Broadcast
+        deliverLocal(channel, bytes, offset, length, binary, channelToSubscribers.subscribers(channel));
+        publish(channel, bytes, offset, length, binary);
+    }
+
+    //send a message to the subscribers connected to this broker only
+    public void broadcastLocal(String channel, byte[] bytes, int offset, int length, boolean binary) {
+        if (isRecording()) {
+            deliverLocal(prepare(channel, bytes, offset, length, binary, false));
+        } else {
+            deliverLocal(channel, bytes, offset, length, binary, channelToSubscribers.subscribers(channel));
+        }
+    }
+
+    /**
+     * First half of a broadcast: records the message and resolves its subscribers, without delivering it.
+     * Lets a caller do both under its own lock and deliver with {@link #deliver(Broadcast)} once it released it.
+     * The bytes must stay unchanged until then
+     */
+    public Broadcast prepareBroadcast(String channel, byte[] bytes, int offset, int length, boolean binary) {
+        return prepare(channel, bytes, offset, length, binary, true);
+    }
+
+    //second half of a broadcast, sends the message to the subscribers resolved by prepareBroadcast
+    public void deliver(Broadcast broadcast) {
+        deliverLocal(broadcast);
+        if (broadcast.federate) {
+            publish(broadcast.channel, broadcast.bytes, broadcast.offset, broadcast.length, broadcast.binary);
+        }
+    }
+
+    // forward to the federated brokers that have subscribers for this channel
+    private void publish(String channel, byte[] bytes, int offset, int length, boolean binary) {
+        if (federation != null) {
+            federation.publish(channel, bytes, offset, length, binary);
+        }
+    }
+
+    private Broadcast prepare(String channel, byte[] bytes, int offset, int length, boolean binary, boolean federate) {
+        Broadcast broadcast = new Broadcast(channel, bytes, offset, length, binary, federate);
+        if (isRecording()) {
+            record(broadcast);
+        } else {
+            // Get a snapshot of all subscribers for this channel.
+            // subscribers are represented as packed <connectionId, subscriptionId> pairs
+            broadcast.subscribers = channelToSubscribers.subscribers(channel);
+        }
+        return broadcast;
+    }
+
+    private void deliverLocal(Broadcast broadcast) {
+        if (broadcast.frame == null) {
+            deliverLocal(broadcast.channel, broadcast.bytes, broadcast.offset, broadcast.length, broadcast.binary, broadcast.subscribers);
+        } else if (broadcast.subscribers.length > 0) {
+            fanOut.broadcast(broadcast.subscribers, broadcast.frame);
+        }
+    }
+
+    private void deliverLocal(String channel, byte[] bytes, int offset, int length, boolean binary, int[] subscribers) {
+        if (subscribers.length == 0) return;
+        // Generate one message-id and encode the frame once for the entire broadcast
+        MessageFrame frame = new MessageFrame(generateMessageId(), channel, bytes, offset, length, binary);
+        // Deliver to each online subscriber, only its subscription id is spliced in.
+        // very large channels are split over parallel lanes
+        fanOut.broadcast(subscribers, frame);
+    }
+
+    //true if broadcasts are kept in memory or in the journal for later replay
+    private boolean isRecording() {
+        return HISTORY_MESSAGES > 0 || journal != null;
+    }
+
+    //keeps the broadcast in the channel's history, even if nobody listens right now
+    private void record(Broadcast broadcast) {
+        String channel = broadcast.channel;
+        while (true) {
+            HistoryRing history = history(channel);
+            // under the ring's lock a joining subscriber either replays this frame or is in the snapshot, never both
+            synchronized (history) {
+                if (history.isDropped()) continue; //trimmed meanwhile, the channel gets a new ring
+                MessageFrame frame = new MessageFrame(generateMessageId(), channel,
+                        broadcast.bytes, broadcast.offset, broadcast.length, broadcast.binary);
+                history.append(frame);
+                if (journal != null) {
+                    try {
+                        journal.channel(channel).append(frame);
+                    } catch (IOException | UncheckedIOException ex) {
+                        // the live subscribers still get the message, only its replay is lost
+                        System.err.println("SERVER WARNING: Failed to journal message " + frame.getMessageId() + ": " + ex.getMessage());
+                    }
+                }
+                broadcast.frame = frame;
+                broadcast.subscribers = channelToSubscribers.subscribers(channel);
+                return;
             }
         }
     }
-    
+
+    //the channel's ring, created on first use. callers lock it and check it was not dropped meanwhile
+    private HistoryRing history(String channel) {
+        HistoryRing history = histories.get(channel);
+        if (history != null) return history;
+        if (histories.size() >= HISTORY_CHANNELS) {
+            trimHistories();
+        }
+        return histories.computeIfAbsent(channel, k -> new HistoryRing(HISTORY_MESSAGES, HISTORY_BYTES));
+    }
+
+    //drops the rings of channels nobody subscribes to that were idle for HISTORY_IDLE_MS.
+    //if none was, the one written to longest ago goes, so the number of rings stays bounded.
+    //a ring is dropped under its lock, where joining subscribers are added, so none of them is left on it
+    private void trimHistories() {
+        long now = System.currentTimeMillis();
+        boolean trimmed = false;
+        String stalest = null;
+        long stalestAppend = Long.MAX_VALUE;
+        for (Map.Entry<String, HistoryRing> entry : histories.entrySet()) {
+            String channel = entry.getKey();
+            HistoryRing history = entry.getValue();
+            synchronized (history) {
+                if (channelToSubscribers.hasSubscribers(channel)) continue;
+                if (now - history.getLastAppend() >= HISTORY_IDLE_MS) {
+                    dropHistory(channel, history);
+                    trimmed = true;
+                } else if (history.getLastAppend() < stalestAppend) {
+                    stalest = channel;
+                    stalestAppend = history.getLastAppend();
+                }
+            }
+        }
+        HistoryRing history = stalest == null || trimmed ? null : histories.get(stalest);
+        if (history != null) {
+            synchronized (history) {
+                if (!channelToSubscribers.hasSubscribers(stalest)) {
+                    dropHistory(stalest, history);
+                }
+            }
+        }
+    }
+
+    //caller holds the ring's lock
+    private void dropHistory(String channel, HistoryRing history) {
+        history.drop();
+        histories.remove(channel, history);
+    }
+
+    //true if a broadcast with a body of the given length can be passed on while the body arrives, see openBroadcast.
+    //federated messages go to the peers whole, and a body the history would keep is held in memory anyway
+    public boolean canStreamBroadcast(long bodyLength) {
+        return federation == null && (HISTORY_MESSAGES <= 0 || bodyLength >= HISTORY_BYTES);
+    }
+
+    /**
+     * Starts a broadcast whose binary body of bodyLength bytes is passed on to the subscribers part by part,
+     * see BroadcastStream. It is aborted if the publisher disconnects before the body is complete
+     */
+    public BroadcastStream openBroadcast(int publisherId, String channel, int bodyLength) {
+        MessageFrame frame;
+        int[] subscribers;
+        ChannelJournal.Reservation record = null;
+        if (!isRecording()) {
+            frame = MessageFrame.streamed(generateMessageId(), channel, bodyLength);
+            subscribers = channelToSubscribers.subscribers(channel);
+        } else {
+            while (true) {
+                HistoryRing history = history(channel);
+                // under the ring's lock, as in record(), so the journal keeps its records in message-id order
+                synchronized (history) {
+                    if (history.isDropped()) continue; //trimmed meanwhile, the channel gets a new ring
+                    frame = MessageFrame.streamed(generateMessageId(), channel, bodyLength);
+                    if (journal != null) {
+                        try {
+                            record = journal.channel(channel).reserve(frame, bodyLength);
+                        } catch (IOException | UncheckedIOException ex) {
+                            System.err.println("SERVER WARNING: Failed to journal message " + frame.getMessageId() + ": " + ex.getMessage());
+                        }
+                    }
+                    subscribers = channelToSubscribers.subscribers(channel);
+                    break;
+                }
+            }
+        }
+        BroadcastStream stream = new BroadcastStream(this, publisherId,
+                fanOut.openStreams(subscribers, frame, bodyLength + 1), record);
+        UserSession<T> session = sessions.get(publisherId);
+        if (session != null) {
+            session.setStream(stream);
+        }
+        if (session == null || sessions.get(publisherId) != session) {
+            stream.abort(); //disconnected meanwhile, maybe before it could see the stream
+        }
+        return stream;
+    }
+
+    //opens a stream to the connection for a frame of head.remaining() + rest bytes, and writes the head to it
+    FrameStream openStream(int connectionId, ByteBuffer head, int rest) {
+        UserSession<T> session = sessions.get(connectionId);
+        FrameStream stream = session == null ? null : session.getHandler().openStream(head.remaining() + rest);
+        if (stream == null) {
+            BufferPool.release(head);
+            return null;
+        }
+        stream.write(head);
+        return stream;
+    }
+
+    //the publisher's broadcast stream ended, one way or the other
+    void streamClosed(int publisherId, BroadcastStream stream) {
+        UserSession<T> session = sessions.get(publisherId);
+        if (session != null) {
+            session.clearStream(stream);
+        }
+    }
+
+    //send a MESSAGE frame to a single subscription of one connection, e.g. a catch-up snapshot
+    public boolean sendMessage(int connectionId, String channel, int subId, String body) {
+        MessageFrame frame = new MessageFrame(generateMessageId(), channel, body);
+        return sendEncoded(connectionId, frame.encodeFor(subId));
+    }
+
+    //send a frame built by the server, e.g. RECEIPT or ERROR, to one connection
+    public boolean sendFrame(int connectionId, StompFrame frame) {
+        return sendEncoded(connectionId, frame.encode());
+    }
+
+    //send an already encoded frame, the handler takes ownership of the buffer
+    public boolean sendEncoded(int connectionId, ByteBuffer frame) {
+        UserSession<T> session = sessions.get(connectionId);
+        if (session != null && session.getHandler() != null) {
+            session.getHandler().sendEncoded(frame);
+            return true;
+        }
+        BufferPool.release(frame);
+        return false;
+    }
+
+    //send an already encoded frame behind the broadcasts still on their way to the connection, e.g. a RECEIPT
+    public void sendAfterBroadcasts(int connectionId, ByteBuffer frame) {
+        fanOut.sendAfterBroadcasts(connectionId, frame);
+    }
+
+    //apply negotiated heart-beat intervals to the connection's handler
+    public void setHeartbeat(int connectionId, long sendInterval, long receiveTimeout) {
+        UserSession<T> session = sessions.get(connectionId);
+        if (session != null && session.getHandler() != null) {
+            session.getHandler().configureHeartbeat(sendInterval, receiveTimeout);
+        }
+    }
+
     //"login" method
     public LoginStatus connect(int connectionId, String username, String password) {
         //delegate login to database
@@ -99,6 +379,12 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
         // if user was online, proceed with logout and cleanup
         if (session != null) {
+            // a body it was still sending never comes
+            BroadcastStream stream = session.getStream();
+            if (stream != null) {
+                stream.abort();
+            }
+
             User user = session.getUser();
             if (user != null) {
                 // log the logout in the database
@@ -119,30 +405,92 @@ public class ConnectionsImpl<T> implements Connections<T> {
     }
 
     public void subscribe(int connectionId, String channel , int subId) {
-        // 1. if the channel does not exist in the map, create a new internal map for it.
-        // 2. 'k' is the channel name (the key), we create a new map for this key.
-        // * this operation is atomic and thread-safe.
-        channelToSubscribers.computeIfAbsent(channel, k -> new ConcurrentHashMap<>())
-        
-        // 3. get the (new or existing) internal map and add the user's connectionId and subId.
-            .put(connectionId, subId);
+        // 1. if the channel does not exist in the registry, it is created.
+        // 2. add the user's connectionId and subId to the channel's subscribers.
+        // * the registry is atomic per channel, so this never races with removing an emptied channel.
+        channelToSubscribers.add(channel, connectionId, subId);
+
+        // 3. record the channel in the connection's own index, used by disconnect
+        connectionToChannels.computeIfAbsent(connectionId, k -> ConcurrentHashMap.newKeySet()).add(channel);
+
+        // 4. if the connection was disconnected meanwhile, its cleanup may have missed this channel
+        if (sessions.get(connectionId) == null) {
+            removeConnectionFromAllChannels(connectionId);
+            removeFromChannel(connectionId, channel);
+            return;
+        }
+
+        // 5. let federated brokers know this channel has a subscriber here
+        if (federation != null) {
+            federation.refreshInterest(channel);
+        }
     }
     
-    public void unsubscribe(int connectionId,String channel) {
-        // 1. Get the internal map for this specific channel
-        ConcurrentHashMap<Integer, Integer> subscribers = channelToSubscribers.get(channel);
-        
-        // 2. If the channel exists, remove the user's connectionId from it
-        if (subscribers != null) {
-            subscribers.remove(connectionId);
-            
-            // Optional: If the channel is now empty, we can remove the channel itself to save memory
-            if (subscribers.isEmpty()) {
-                channelToSubscribers.remove(channel);
+    //subscribe, then replay the channel's history to the new subscriber before any newer message.
+    //replayFrom is the first message-id to replay and replayLast the number of newest messages, -1 for none
+    public void subscribe(int connectionId, String channel, int subId, long replayFrom, long replayLast) {
+        if (!isRecording() || (replayFrom < 0 && replayLast < 0) || ChannelRegistry.isPattern(channel)) {
+            subscribe(connectionId, channel, subId);
+            return;
+        }
+        while (true) {
+            HistoryRing history = history(channel);
+            synchronized (history) {
+                if (history.isDropped()) continue; //trimmed meanwhile, the channel gets a new ring
+                subscribe(connectionId, channel, subId);
+                if (journal != null) {
+                    // the journal reaches further back than the in-memory ring
+                    List<ByteBuffer> replay = journalReplay(channel, subId, replayFrom, replayLast);
+                    if (replay != null) {
+                        for (ByteBuffer frame : replay) {
+                            sendEncoded(connectionId, frame);
+                        }
+                        return;
+                    }
+                }
+                List<MessageFrame> replay = replayFrom >= 0 ? history.from(replayFrom) : history.last(replayLast);
+                for (MessageFrame frame : replay) {
+                    sendEncoded(connectionId, frame.encodeFor(subId));
+                }
+                return;
             }
         }
     }
     
+    //the channel's journaled frames for the subscription, null if its journal cannot be opened.
+    //the subscriber then gets what the in-memory ring holds, if anything, and the live messages
+    private List<ByteBuffer> journalReplay(String channel, int subId, long replayFrom, long replayLast) {
+        try {
+            ChannelJournal channelJournal = journal.channel(channel);
+            return replayFrom >= 0 ? channelJournal.replayFrom(replayFrom, subId) : channelJournal.replayLast(replayLast, subId);
+        } catch (UncheckedIOException ex) {
+            System.err.println("SERVER WARNING: Failed to open the journal of " + channel + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    public void unsubscribe(int connectionId,String channel) {
+        if (channel == null) return;
+
+        // 1. Remove the channel from the connection's index
+        Set<String> channels = connectionToChannels.get(connectionId);
+        if (channels != null) {
+            channels.remove(channel);
+        }
+
+        // 2. Remove the user's connectionId from the channel
+        removeFromChannel(connectionId, channel);
+    }
+
+    //removes the connection from one channel, dropping the channel once it has no subscribers
+    private void removeFromChannel(int connectionId, String channel) {
+        // atomic per channel, a concurrent subscribe either comes before (and keeps it alive) or after (and recreates it)
+        channelToSubscribers.remove(channel, connectionId);
+        if (federation != null) {
+            federation.refreshInterest(channel);
+        }
+    }
+    
     //generate unique connection id for new connection 
     //(Does not add the connection handler itself!)
     public int getNewConnectionId() {
@@ -156,13 +504,38 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     //private helper function for disconnect. Without it, disconnected clients would still be in the channels' subscribers lists
     private void removeConnectionFromAllChannels(int connectionId) {
-        // we iterate over the channel names. 
-        // ConcurrentHashMap's keySet is safe to iterate even if we remove items during the loop.
-        for (String channelName : channelToSubscribers.keySet()) {
-            unsubscribe(connectionId, channelName);
+        // only the channels this connection actually joined are touched
+        Set<String> channels = connectionToChannels.remove(connectionId);
+        if (channels != null) {
+            for (String channelName : channels) {
+                removeFromChannel(connectionId, channelName);
+            }
         }
     }
 
+    //gauge of pending outgoing bytes per connection, to spot slow consumers
+    public Map<Integer, Long> getQueuedBytes() {
+        Map<Integer, Long> queued = new HashMap<>();
+        for (int connectionId = 0; connectionId < sessions.capacity(); connectionId++) {
+            UserSession<T> session = sessions.get(connectionId);
+            long bytes = session == null ? 0 : session.getHandler().getQueuedBytes();
+            if (bytes > 0) {
+                queued.put(connectionId, bytes);
+            }
+        }
+        return queued;
+    }
+
+    //broadcast delivery stats
+    public FanOut getFanOut() {
+        return fanOut;
+    }
+
+    //stops the threads of the broadcast lanes, once the server stopped serving
+    public void shutdown() {
+        fanOut.shutdown();
+    }
+
     //check if a user is logged in based on connectionId
     public boolean isUserLoggedIn(int connectionId) {
         User user = database.getUserByConnectionId(connectionId);
@@ -171,17 +544,93 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     //check if a user is subscribed to a specific channel
     public boolean isUserSubscribed(int connectionId, String channel) {
-        //fetch subscribers map for the channel
-        ConcurrentHashMap<Integer, Integer> subscribers = channelToSubscribers.get(channel);
-        
-        //check if channel exists and if the user is in its subscribers list
-        return subscribers != null && subscribers.containsKey(connectionId);
+        //look the channel up in the connection's own index
+        Set<String> channels = connectionToChannels.get(connectionId);
+        return channels != null && channels.contains(channel);
+    }
+
+    //check if any of the user's subscriptions, exact or wildcard, covers a destination
+    public boolean isSubscribedTo(int connectionId, String destination) {
+        Set<String> channels = connectionToChannels.get(connectionId);
+        if (channels == null) return false;
+        if (channels.contains(destination)) return true;
+        for (String channel : channels) {
+            if (ChannelRegistry.matches(channel, destination)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * A broadcast between prepareBroadcast and deliver: the message and the subscribers it goes to.
+     */
+    public static class Broadcast {
+        private final String channel;
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+        private final boolean binary;
+        private final boolean federate; //false for messages that came from a peer
+        private MessageFrame frame; //built by deliver unless the message was recorded
+        private int[] subscribers;
+
+        private Broadcast(String channel, byte[] bytes, int offset, int length, boolean binary, boolean federate) {
+            this.channel = channel;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.binary = binary;
+            this.federate = federate;
+        }
+    }
+
+    /**
+     * Sessions by connection id. Ids are handed out in order and never reused, so the table is a plain array
+     * indexed by the id: a lookup is an array load, without hashing or boxing the id. It doubles when an id
+     * runs past its end and never shrinks, one reference per connection the server ever accepted.
+     * Changes take the table's lock, lookups only read the current array.
+     */
+    private static class SessionTable<S> {
+        private volatile AtomicReferenceArray<S> slots = new AtomicReferenceArray<>(64);
+
+        S get(int connectionId) {
+            AtomicReferenceArray<S> current = slots;
+            return connectionId >= 0 && connectionId < current.length() ? current.get(connectionId) : null;
+        }
+
+        synchronized void put(int connectionId, S session) {
+            if (connectionId < 0) {
+                throw new IllegalArgumentException("negative connection id " + connectionId);
+            }
+            AtomicReferenceArray<S> current = slots;
+            if (connectionId >= current.length()) {
+                int length = (int) Math.min(Integer.MAX_VALUE, Math.max(connectionId + 1L, current.length() * 2L));
+                AtomicReferenceArray<S> grown = new AtomicReferenceArray<>(length);
+                for (int i = 0; i < current.length(); i++) {
+                    grown.set(i, current.get(i));
+                }
+                slots = grown;
+                current = grown;
+            }
+            current.set(connectionId, session);
+        }
+
+        synchronized S remove(int connectionId) {
+            AtomicReferenceArray<S> current = slots;
+            if (connectionId < 0 || connectionId >= current.length()) return null;
+            return current.getAndSet(connectionId, null);
+        }
+
+        //one past the highest id the table has room for
+        int capacity() {
+            return slots.length();
+        }
     }
 
     // class to wrapping user with their respective connection handler
     private class UserSession<T> {
         private User user;
         private final ConnectionHandler<T> handler;
+        private volatile BroadcastStream stream; //the broadcast whose body the connection is sending, if any
         
         public UserSession(ConnectionHandler<T> handler) {
             this.user = null;
@@ -191,6 +640,9 @@ public class ConnectionsImpl<T> implements Connections<T> {
         public void setUser(User user) { this.user = user; }
         public ConnectionHandler<T> getHandler() { return handler; }
         public User getUser() { return user; }
+        public BroadcastStream getStream() { return stream; }
+        public void setStream(BroadcastStream stream) { this.stream = stream; }
+        public void clearStream(BroadcastStream ended) { if (stream == ended) stream = null; }
     }
 
 }
@@ -0,0 +1,173 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A single selector loop of the reactor.
+ * Every loop owns its own selector, its own thread and its own queue of selector tasks,
+ * so interest-op changes of a connection only ever wake up the loop that serves it.
+ * The acceptor loop also receives OP_ACCEPT events and hands them back to the reactor.
+ */
+public class EventLoop<T> implements Runnable {
+
+    private final Reactor<T> reactor;
+    private final ActorThreadPool pool;
+    private final Selector selector;
+
+    private volatile Thread selectorThread;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    //set once a wakeup was issued for the current batch of selector tasks
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    //heart-beat and idle timeouts of this loop's connections. only used by the selector thread
+    private final TimingWheel timers = new TimingWheel(
+            Long.getLong("stomp.heartbeat.tickMs", 100), 512);
+
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder wakeupsAvoided = new LongAdder();
+    private final LongAdder interestUpdatesCoalesced = new LongAdder();
+
+    public EventLoop(Reactor<T> reactor, ActorThreadPool pool) throws IOException {
+        this.reactor = reactor;
+        this.pool = pool;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+
+                if (timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    long wait = timers.millisToNextTick(System.currentTimeMillis());
+                    if (wait > 0) selector.select(wait);
+                    else selector.selectNow();
+                }
+                wakeupPending.set(false); //tasks added from now on need a new wakeup
+                runSelectionThreadTasks();
+                if (!timers.isEmpty()) {
+                    timers.advance(System.currentTimeMillis());
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        reactor.handleAccept((ServerSocketChannel) key.channel());
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+            }
+
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /*package*/ Selector selector() {
+        return selector;
+    }
+
+    //registers a freshly accepted channel with this loop, from any thread
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        execute(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                handler.close();
+            }
+        });
+    }
+
+    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
+        if (Thread.currentThread() == selectorThread) {
+            final SelectionKey key = chan.keyFor(selector);
+            if (key != null && key.isValid()) key.interestOps(ops);
+        } else {
+            execute(() -> {
+                SelectionKey key = chan.keyFor(selector);
+                if (key != null && key.isValid()) key.interestOps(ops);
+            });
+        }
+    }
+
+    //runs the task on this loop's selector thread.
+    //only the first task of a batch wakes the selector up, the rest are picked up by the same wakeup
+    /*package*/ void execute(Runnable task) {
+        selectorTasks.add(task);
+        if (wakeupPending.compareAndSet(false, true)) {
+            wakeups.increment();
+            selector.wakeup();
+        } else {
+            wakeupsAvoided.increment();
+        }
+    }
+
+    //runs the task after the given delay, on the selector thread. must be called from the selector thread
+    /*package*/ void schedule(TimingWheel.Task task, long delayMs) {
+        timers.schedule(task, delayMs);
+    }
+
+    //called by a handler that skipped an interest change because a write was already pending
+    /*package*/ void interestUpdateCoalesced() {
+        interestUpdatesCoalesced.increment();
+    }
+
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    public long getWakeupsAvoided() {
+        return wakeupsAvoided.sum();
+    }
+
+    public long getInterestUpdatesCoalesced() {
+        return interestUpdatesCoalesced.sum();
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.mailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    public void close() throws IOException {
+        selector.close();
+    }
+}
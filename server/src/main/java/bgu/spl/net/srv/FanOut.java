@@ -0,0 +1,208 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.net.impl.stomp.MessageFrame;
+
+/**
+ * Delivers a broadcast to the subscribers of a channel.
+ * Small channels are served on the calling thread. Above a subscriber threshold the recipients are split into
+ * lanes that run in parallel on a fork-join pool. A subscriber always lands in the same lane (hashed by its
+ * connection id) and every lane is a serial mailbox, so a subscriber gets its messages in order. While lane work
+ * is in flight, smaller broadcasts go through the lanes as well, so they cannot overtake a larger one.
+ * A frame that has to follow the broadcasts, like the RECEIPT of a SEND, takes its connection's lane the same way.
+ * A broadcast passed on while its body arrives opens its streams once the lanes are done with the earlier ones.
+ */
+public class FanOut {
+
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("stomp.fanout.parallelThreshold", 1024); //subscribers, 0 for never
+    private static final int LANES = Integer.getInteger("stomp.fanout.lanes", Runtime.getRuntime().availableProcessors());
+
+    private final ConnectionsImpl<?> connections;
+    private final ActorThreadPool.Mailbox[] lanes;
+    private volatile ActorThreadPool pool; //created on the first parallel broadcast
+    private final AtomicInteger inFlight = new AtomicInteger(0); //lane chunks submitted and not finished yet
+
+    //time from the first recipient of a broadcast to the last
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder parallelBroadcasts = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+
+    public FanOut(ConnectionsImpl<?> connections) {
+        this.connections = connections;
+        this.lanes = new ActorThreadPool.Mailbox[Math.max(1, LANES)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ActorThreadPool.Mailbox(i);
+        }
+    }
+
+    /**
+     * sends the frame to every (connectionId, subscriptionId) pair of the snapshot
+     */
+    public void broadcast(int[] subscribers, MessageFrame frame) {
+        int count = subscribers.length / 2;
+        boolean parallel = lanes.length > 1 && PARALLEL_THRESHOLD > 0 && count >= PARALLEL_THRESHOLD;
+        if (!parallel && inFlight.get() == 0) {
+            long start = System.nanoTime();
+            deliver(subscribers, frame);
+            recordLatency(start);
+            return;
+        }
+        if (parallel) {
+            parallelBroadcasts.increment();
+        }
+        broadcastOnLanes(subscribers, frame);
+    }
+
+    /**
+     * sends a frame to one connection after every broadcast handed to it so far, e.g. the RECEIPT of a SEND
+     * whose MESSAGE to the sender itself may still be waiting on a lane
+     */
+    public void sendAfterBroadcasts(int connectionId, ByteBuffer frame) {
+        if (inFlight.get() == 0) {
+            connections.sendEncoded(connectionId, frame);
+            return;
+        }
+        inFlight.incrementAndGet();
+        pool().submit(lanes[laneOf(connectionId)], () -> {
+            try {
+                connections.sendEncoded(connectionId, frame);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * opens a stream of the frame's full size to every (connectionId, subscriptionId) pair of the snapshot and
+     * writes the frame's head to it, after the broadcasts handed to the lanes so far.
+     * an entry stays null for a connection that is gone or did not take the frame
+     */
+    public FrameStream[] openStreams(int[] subscribers, MessageFrame frame, int rest) {
+        if (inFlight.get() > 0) {
+            awaitLanes();
+        }
+        FrameStream[] streams = new FrameStream[subscribers.length / 2];
+        for (int i = 0; i < subscribers.length; i += 2) {
+            streams[i / 2] = connections.openStream(subscribers[i], frame.encodeFor(subscribers[i + 1]), rest);
+        }
+        return streams;
+    }
+
+    //waits until every lane is done with the work submitted so far
+    private void awaitLanes() {
+        CountDownLatch done = new CountDownLatch(lanes.length);
+        ActorThreadPool lanePool = pool();
+        for (ActorThreadPool.Mailbox lane : lanes) {
+            lanePool.submit(lane, done::countDown);
+        }
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void broadcastOnLanes(int[] subscribers, MessageFrame frame) {
+        //split the pairs by lane: count, then fill
+        int[] sizes = new int[lanes.length];
+        for (int i = 0; i < subscribers.length; i += 2) {
+            sizes[laneOf(subscribers[i])] += 2;
+        }
+        int[][] chunks = new int[lanes.length][];
+        int used = 0;
+        for (int l = 0; l < lanes.length; l++) {
+            if (sizes[l] > 0) {
+                chunks[l] = new int[sizes[l]];
+                used++;
+            }
+            sizes[l] = 0;
+        }
+        for (int i = 0; i < subscribers.length; i += 2) {
+            int l = laneOf(subscribers[i]);
+            chunks[l][sizes[l]++] = subscribers[i];
+            chunks[l][sizes[l]++] = subscribers[i + 1];
+        }
+
+        ActorThreadPool lanePool = pool();
+        AtomicInteger remaining = new AtomicInteger(used);
+        long start = System.nanoTime();
+        inFlight.addAndGet(used);
+        for (int l = 0; l < lanes.length; l++) {
+            int[] chunk = chunks[l];
+            if (chunk == null) continue;
+            lanePool.submit(lanes[l], () -> {
+                try {
+                    deliver(chunk, frame);
+                } finally {
+                    inFlight.decrementAndGet();
+                    if (remaining.decrementAndGet() == 0) {
+                        recordLatency(start);
+                    }
+                }
+            });
+        }
+    }
+
+    private void deliver(int[] subscribers, MessageFrame frame) {
+        for (int i = 0; i < subscribers.length; i += 2) {
+            connections.sendEncoded(subscribers[i], frame.encodeFor(subscribers[i + 1]));
+        }
+    }
+
+    private int laneOf(int connectionId) {
+        return Math.floorMod(connectionId, lanes.length);
+    }
+
+    private ActorThreadPool pool() {
+        ActorThreadPool p = pool;
+        if (p == null) {
+            synchronized (this) {
+                p = pool;
+                if (p == null) {
+                    //async mode keeps the submitted mailboxes in FIFO order
+                    p = new ActorThreadPool(new ForkJoinPool(lanes.length, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true));
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    private void recordLatency(long start) {
+        long elapsed = System.nanoTime() - start;
+        broadcasts.increment();
+        totalLatencyNanos.add(elapsed);
+        maxLatencyNanos.accumulateAndGet(elapsed, Math::max);
+    }
+
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    public long getParallelBroadcasts() {
+        return parallelBroadcasts.sum();
+    }
+
+    //mean time from first to last recipient, in microseconds
+    public long getAverageLatencyMicros() {
+        long count = broadcasts.sum();
+        return count == 0 ? 0 : totalLatencyNanos.sum() / count / 1000;
+    }
+
+    public long getMaxLatencyMicros() {
+        return maxLatencyNanos.get() / 1000;
+    }
+
+    //stops the lane threads, called when the server closes
+    public void shutdown() {
+        ActorThreadPool p = pool;
+        if (p != null) p.shutdown();
+    }
+}
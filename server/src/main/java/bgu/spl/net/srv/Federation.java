@@ -0,0 +1,224 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Links this broker to other broker processes, so subscribers of one get the messages published on another.
+ * Every broker tells its peers which channels (and wildcard patterns) have local subscribers, and a locally
+ * published message is forwarded only to the peers interested in its channel. Messages are forwarded once,
+ * from the broker they were published on, so the peers are meant to form a full mesh.
+ * A message is identified by its origin and a sequence number, and a broker drops a message it already
+ * delivered, e.g. when two brokers list each other and end up with two links.
+ * <p>
+ * Only channel traffic is federated. Users, logins and SQL tracking stay local to every broker.
+ */
+public class Federation {
+
+    private static final int RECENT_IDS = 4096; //remembered message ids per origin
+    private static final long RECONNECT_MS = 1000;
+
+    private final String nodeId;
+    private final String origin; //node id plus start time, sequence numbers restart with the process
+    private final ConnectionsImpl<?> connections;
+    private final ChannelRegistry registry;
+    private final Set<FederationLink> links = ConcurrentHashMap.newKeySet();
+    private final Set<String> announced = new HashSet<>(); //local interest the peers were told about, guarded by itself
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final ConcurrentHashMap<String, RecentIds> delivered = new ConcurrentHashMap<>();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    Federation(String nodeId, ConnectionsImpl<?> connections, ChannelRegistry registry) {
+        this.nodeId = nodeId;
+        this.origin = nodeId + "@" + System.currentTimeMillis();
+        this.connections = connections;
+        this.registry = registry;
+    }
+
+    /**
+     * @return the federation configured by system properties, started, or null if federation is off
+     */
+    static Federation fromSystemProperties(ConnectionsImpl<?> connections, ChannelRegistry registry) {
+        Integer port = Integer.getInteger("stomp.federation.port");
+        String peers = System.getProperty("stomp.federation.peers", "");
+        if (port == null && peers.isEmpty()) {
+            return null;
+        }
+        //a default such as the pid could repeat on another host, and the peer would be taken for this broker
+        String nodeId = System.getProperty("stomp.federation.nodeId");
+        if (nodeId == null || nodeId.trim().isEmpty()) {
+            throw new IllegalStateException("stomp.federation.nodeId must name this broker, uniquely among its peers");
+        }
+        Federation federation = new Federation(nodeId.trim(), connections, registry);
+        if (port != null) {
+            federation.listen(System.getProperty("stomp.federation.bind", "127.0.0.1"), port);
+        }
+        for (String peer : peers.split(",")) {
+            if (peer.trim().isEmpty()) continue;
+            String[] hostPort = peer.trim().split(":");
+            federation.connect(hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+        return federation;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * accepts links from peers on the port of the given local address. peers are not authenticated,
+     * so the address should only be reachable by the other brokers
+     */
+    public void listen(String bindAddress, int port) {
+        ServerSocket server;
+        try {
+            server = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        startDaemon("federation-accept-" + port, () -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket sock = server.accept();
+                    startDaemon("federation-link-" + sock.getRemoteSocketAddress(), new FederationLink(this, sock));
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * keeps a link to the peer open, reconnecting whenever it breaks
+     */
+    public void connect(String host, int port) {
+        startDaemon("federation-link-" + host + ":" + port, () -> {
+            while (true) {
+                try (Socket sock = new Socket()) {
+                    sock.connect(new InetSocketAddress(host, port));
+                    sock.setTcpNoDelay(true);
+                    new FederationLink(this, sock).run(); //returns once the link breaks
+                } catch (IOException ex) {
+                    //peer not up yet, try again
+                }
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * tells the peers if the channel (or wildcard pattern) has local subscribers now.
+     * rereads the registry under the lock, so racing calls still leave the peers with the latest state
+     */
+    void refreshInterest(String channel) {
+        synchronized (announced) {
+            boolean active = registry.hasSubscribers(channel);
+            if (active == announced.contains(channel)) return;
+            if (active) announced.add(channel);
+            else announced.remove(channel);
+            for (FederationLink link : links) {
+                link.sendInterest(channel, active);
+            }
+        }
+    }
+
+    /**
+     * forwards a message published on this broker to the peers with subscribers for its channel
+     */
+    void publish(String channel, byte[] bytes, int offset, int length, boolean binary) {
+        long seq = -1;
+        for (FederationLink link : links) {
+            if (link.isInterested(channel)) {
+                if (seq < 0) seq = sequence.incrementAndGet();
+                link.sendMessage(origin, seq, channel, bytes, offset, length, binary);
+                forwarded.increment();
+            }
+        }
+    }
+
+    //a message published on a peer
+    void receive(String messageOrigin, long seq, String channel, byte[] body, boolean binary) {
+        if (messageOrigin.equals(origin)) return; //our own, came back through a peer
+        RecentIds recent = delivered.computeIfAbsent(messageOrigin, k -> new RecentIds());
+        if (!recent.add(seq)) {
+            duplicates.increment();
+            return;
+        }
+        received.increment();
+        connections.broadcastLocal(channel, body, 0, body.length, binary);
+    }
+
+    //called once the peer said hello. false if the peer turns out to be this broker
+    boolean linkUp(FederationLink link) {
+        if (nodeId.equals(link.getPeerId())) {
+            return false;
+        }
+        synchronized (announced) {
+            links.add(link);
+            for (String channel : announced) {
+                link.sendInterest(channel, true);
+            }
+        }
+        System.out.println("federation link up: " + nodeId + " <-> " + link.getPeerId());
+        return true;
+    }
+
+    void linkDown(FederationLink link) {
+        if (links.remove(link)) {
+            System.out.println("federation link down: " + nodeId + " <-> " + link.getPeerId());
+        }
+    }
+
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    public long getForwarded() {
+        return forwarded.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Bounded set of the latest message ids delivered from one origin.
+     */
+    private static class RecentIds {
+        private final LinkedHashSet<Long> ids = new LinkedHashSet<>();
+
+        synchronized boolean add(long id) {
+            if (!ids.add(id)) return false;
+            if (ids.size() > RECENT_IDS) {
+                ids.remove(ids.iterator().next()); //oldest first
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package bgu.spl.net.srv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One broker-to-broker TCP link. Both sides send HELLO with their node id first, then any number of records:
+ * interest added or removed for a channel (or wildcard pattern), and messages published on the other side.
+ * Records are written by the link's own writer thread, so the brokers' workers never block on a peer.
+ * A peer that falls behind misses message records, at most stomp.federation.maxQueued of them wait for it.
+ * HELLO and interest records are never dropped, the peer's view of our subscriptions would stay wrong.
+ */
+public class FederationLink implements Runnable {
+
+    private static final byte HELLO = 'H';
+    private static final byte INTEREST_ADD = 'I';
+    private static final byte INTEREST_REMOVE = 'U';
+    private static final byte MESSAGE = 'M';
+    private static final byte[] CLOSE = new byte[0]; //tells the writer to stop
+    private static final int MAX_QUEUED_MESSAGES = Integer.getInteger("stomp.federation.maxQueued", 1 << 16);
+    //a record carries at most one message body, so nothing longer is accepted from a peer
+    private static final int MAX_RECORD_BYTES = Integer.getInteger("stomp.frame.maxBytes", 1 << 22);
+    private static final long CLOSE_WAIT_MS = 1000; //time the writer gets to send what was queued before close()
+
+    private final Federation federation;
+    private final Socket sock;
+    //unbounded, only message records are counted and limited
+    private final LinkedBlockingQueue<byte[]> outbox = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedMessages = new AtomicInteger(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    //what the peer's subscribers listen to
+    private final Set<String> remoteChannels = ConcurrentHashMap.newKeySet();
+    private final Set<String> remotePatterns = ConcurrentHashMap.newKeySet();
+    private volatile String peerId = null;
+    private volatile boolean closed = false;
+
+    FederationLink(Federation federation, Socket sock) {
+        this.federation = federation;
+        this.sock = sock;
+    }
+
+    /**
+     * reads the peer's records until the link breaks. the writer runs on its own thread meanwhile
+     */
+    @Override
+    public void run() {
+        Thread writer = new Thread(this::writeLoop, "federation-writer-" + sock.getRemoteSocketAddress());
+        writer.setDaemon(true);
+        writer.start();
+        enqueue(record(HELLO, federation.getNodeId()));
+
+        try {
+            //not closed on its own, that would close the socket before the writer is done
+            DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            while (true) {
+                byte type = in.readByte();
+                switch (type) {
+                    case HELLO:
+                        peerId = readString(in);
+                        if (!federation.linkUp(this)) return; //a link to ourselves
+                        break;
+                    case INTEREST_ADD: {
+                        String channel = readString(in);
+                        (ChannelRegistry.isPattern(channel) ? remotePatterns : remoteChannels).add(channel);
+                        break;
+                    }
+                    case INTEREST_REMOVE: {
+                        String channel = readString(in);
+                        (ChannelRegistry.isPattern(channel) ? remotePatterns : remoteChannels).remove(channel);
+                        break;
+                    }
+                    case MESSAGE: {
+                        String origin = readString(in);
+                        long sequence = in.readLong();
+                        boolean binary = in.readBoolean();
+                        String channel = readString(in);
+                        byte[] body = readBytes(in);
+                        federation.receive(origin, sequence, channel, body, binary);
+                        break;
+                    }
+                    default:
+                        throw new IOException("unknown federation record " + type);
+                }
+            }
+        } catch (EOFException ex) {
+            //peer went away
+        } catch (IOException ex) {
+            System.err.println("federation link to " + describe() + " failed: " + ex.getMessage());
+        } finally {
+            federation.linkDown(this);
+            close();
+            try {
+                writer.join(CLOSE_WAIT_MS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            closeSocket();
+        }
+    }
+
+    public String getPeerId() {
+        return peerId;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    //true if a subscriber on the peer would get a message sent to the channel
+    boolean isInterested(String channel) {
+        if (remoteChannels.contains(channel)) return true;
+        for (String pattern : remotePatterns) {
+            if (ChannelRegistry.matches(pattern, channel)) return true;
+        }
+        return false;
+    }
+
+    void sendInterest(String channel, boolean active) {
+        enqueue(record(active ? INTEREST_ADD : INTEREST_REMOVE, channel));
+    }
+
+    void sendMessage(String origin, long sequence, String channel, byte[] body, int offset, int length, boolean binary) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + channel.length() + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(MESSAGE);
+            writeString(out, origin);
+            out.writeLong(sequence);
+            out.writeBoolean(binary);
+            writeString(out, channel);
+            out.writeInt(length);
+            out.write(body, offset, length);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); //in-memory stream
+        }
+        if (closed || queuedMessages.incrementAndGet() > MAX_QUEUED_MESSAGES) {
+            queuedMessages.decrementAndGet();
+            dropped.incrementAndGet(); //the peer is not keeping up, it misses the message
+            return;
+        }
+        outbox.offer(bytes.toByteArray());
+    }
+
+    /**
+     * stops the link once the records queued so far are written. records queued afterwards are not sent
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        outbox.offer(CLOSE);
+    }
+
+    private void closeSocket() {
+        try {
+            sock.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    //HELLO and interest records, never dropped
+    private void enqueue(byte[] record) {
+        if (!closed) {
+            outbox.offer(record);
+        }
+    }
+
+    private void writeLoop() {
+        try (OutputStream out = new BufferedOutputStream(sock.getOutputStream(), 1 << 16)) {
+            while (true) {
+                byte[] record = outbox.take();
+                do {
+                    if (record == CLOSE) {
+                        out.flush();
+                        return;
+                    }
+                    if (record[0] == MESSAGE) {
+                        queuedMessages.decrementAndGet();
+                    }
+                    out.write(record);
+                } while ((record = outbox.poll()) != null);
+                out.flush(); //one flush per batch
+            }
+        } catch (IOException ex) {
+            //the reader notices the broken link as well
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeSocket(); //wakes up the reader if the writer stopped first
+        }
+    }
+
+    private String describe() {
+        return peerId != null ? peerId : String.valueOf(sock.getRemoteSocketAddress());
+    }
+
+    private static byte[] record(byte type, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[1 + 4 + bytes.length];
+        record[0] = type;
+        record[1] = (byte) (bytes.length >>> 24);
+        record[2] = (byte) (bytes.length >>> 16);
+        record[3] = (byte) (bytes.length >>> 8);
+        record[4] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, record, 5, bytes.length);
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD_BYTES) throw new IOException("bad record length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
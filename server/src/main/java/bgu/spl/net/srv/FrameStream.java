@@ -0,0 +1,27 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame sent to one connection in pieces, e.g. a MESSAGE whose body is passed on while it still arrives.
+ * Nothing else is written to the connection between the pieces: frames sent to it meanwhile go out once
+ * the stream is finished. Opened by {@link ConnectionHandler#openStream(int)}.
+ */
+public interface FrameStream {
+
+    /**
+     * queues the next piece of the frame. the stream takes ownership of the buffer, as sendEncoded does
+     */
+    void write(ByteBuffer piece);
+
+    /**
+     * the frame is complete, the frames held back behind it may go
+     */
+    void finish();
+
+    /**
+     * the frame will never be complete. the peer may have part of it already, so the connection is closed
+     * once the pieces written so far went out
+     */
+    void abort();
+}
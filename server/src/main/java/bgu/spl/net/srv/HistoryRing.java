@@ -0,0 +1,91 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import bgu.spl.net.impl.stomp.MessageFrame;
+
+/**
+ * Recent messages of one channel, bounded by a message count and by their encoded size.
+ * Frames are kept already encoded, so a replay only splices in the new subscriber's subscription id.
+ * The ring's lock also orders subscribers joining the channel against broadcasts to it, see ConnectionsImpl.
+ * A ring that was dropped, because its channel went idle without subscribers, is never used again.
+ */
+public class HistoryRing {
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ArrayDeque<MessageFrame> frames = new ArrayDeque<>();
+    private long bytes = 0;
+    private long lastAppend = System.currentTimeMillis();
+    private boolean dropped = false;
+
+    public HistoryRing(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * keeps the frame, evicting the oldest ones once a limit is exceeded. caller holds the ring's lock
+     */
+    public void append(MessageFrame frame) {
+        lastAppend = System.currentTimeMillis();
+        if (maxMessages <= 0 || frame.getSharedLength() > maxBytes) {
+            return; //history turned off, or the frame would evict everything and still not fit
+        }
+        frames.addLast(frame);
+        bytes += frame.getSharedLength();
+        while (frames.size() > maxMessages || bytes > maxBytes) {
+            bytes -= frames.removeFirst().getSharedLength();
+        }
+    }
+
+    /**
+     * @return the newest frames, at most count of them, oldest first. caller holds the ring's lock
+     */
+    public List<MessageFrame> last(long count) {
+        int skip = (int) Math.max(0, frames.size() - count);
+        List<MessageFrame> replay = new ArrayList<>(frames.size() - skip);
+        Iterator<MessageFrame> it = frames.iterator();
+        for (int i = 0; it.hasNext(); i++) {
+            MessageFrame frame = it.next();
+            if (i >= skip) replay.add(frame);
+        }
+        return replay;
+    }
+
+    /**
+     * @return the frames with a message-id of at least firstId, oldest first. caller holds the ring's lock
+     */
+    public List<MessageFrame> from(long firstId) {
+        List<MessageFrame> replay = new ArrayList<>();
+        for (MessageFrame frame : frames) {
+            if (frame.getMessageId() >= firstId) replay.add(frame);
+        }
+        return replay;
+    }
+
+    //time of the last append, in milliseconds. caller holds the ring's lock
+    public long getLastAppend() {
+        return lastAppend;
+    }
+
+    //marks the ring as no longer the channel's. caller holds the ring's lock
+    public void drop() {
+        dropped = true;
+    }
+
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,106 @@
+package bgu.spl.net.srv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Durable journals of all channels, one directory of segments per channel under a root directory.
+ * Appends only copy into mapped memory. A flusher thread forces whatever was appended since its last turn
+ * once every flush interval, so many messages share one fsync (group commit). Until then they survive a
+ * crash of the server, but not of the machine.
+ * On startup the existing journals are recovered, so message ids can continue where they stopped.
+ */
+public class Journal {
+
+    private static final String CHANNEL_PREFIX = "ch-"; //keeps names like "." or "" usable as directories
+
+    private final File root;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final ConcurrentHashMap<String, ChannelJournal> channels = new ConcurrentHashMap<>();
+    private long lastMessageId = -1;
+
+    public Journal(File root, int segmentBytes, int maxSegments, long flushIntervalMs) throws IOException {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("cannot create journal directory " + root);
+        }
+
+        File[] dirs = root.listFiles(f -> f.isDirectory() && f.getName().startsWith(CHANNEL_PREFIX));
+        if (dirs != null) {
+            for (File dir : dirs) {
+                String channel = URLDecoder.decode(dir.getName().substring(CHANNEL_PREFIX.length()), StandardCharsets.UTF_8);
+                ChannelJournal journal = new ChannelJournal(dir, segmentBytes, maxSegments);
+                channels.put(channel, journal);
+                lastMessageId = Math.max(lastMessageId, journal.getLastMessageId());
+            }
+        }
+
+        Thread flusher = new Thread(() -> flushLoop(flushIntervalMs), "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @return the journal configured by system properties, or null if journaling is off
+     */
+    public static Journal fromSystemProperties() {
+        String dir = System.getProperty("stomp.journal.dir");
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        try {
+            return new Journal(new File(dir),
+                    Integer.getInteger("stomp.journal.segmentBytes", 16 << 20),
+                    Integer.getInteger("stomp.journal.maxSegments", 16),
+                    Long.getLong("stomp.journal.flushMs", 50));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @return highest message-id found in the journals on startup, -1 if there was none
+     */
+    public long getLastMessageId() {
+        return lastMessageId;
+    }
+
+    /**
+     * @return the channel's journal, created on first use
+     */
+    public ChannelJournal channel(String channel) {
+        return channels.computeIfAbsent(channel, k -> {
+            File dir = new File(root, CHANNEL_PREFIX + URLEncoder.encode(k, StandardCharsets.UTF_8));
+            try {
+                return new ChannelJournal(dir, segmentBytes, maxSegments);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    private void flushLoop(long intervalMs) {
+        while (true) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            for (ChannelJournal journal : channels.values()) {
+                try {
+                    journal.force();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+}
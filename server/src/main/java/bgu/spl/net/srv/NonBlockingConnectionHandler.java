@@ -9,19 +9,63 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int MAX_GATHER_BUFFERS = 64; //max buffers handed to a single gathering write
+    private static final long MAX_GATHER_BYTES = 1 << 18; //256k, max bytes handed to a single gathering write
+    private static final byte[] HEARTBEAT = {'\n'};
+    private static final int COALESCE_THRESHOLD = 1 << 11; //frames up to 2k are copied together into pooled buffers
+    //how long frames queued before close() (e.g. an ERROR) get to go out before the socket is closed anyway
+    private static final long CLOSE_LINGER_MS = Long.getLong("stomp.close.lingerMs", 2000);
+
+    //per connection write queue limits, in bytes. can be tuned with system properties
+    private static final long HIGH_WATERMARK = Long.getLong("stomp.writeQueue.highWatermark", 4 << 20); //4m
+    private static final long LOW_WATERMARK = Long.getLong("stomp.writeQueue.lowWatermark", 1 << 20); //1m
+    private static final SlowConsumerPolicy SLOW_CONSUMER_POLICY =
+            SlowConsumerPolicy.valueOf(System.getProperty("stomp.writeQueue.policy", SlowConsumerPolicy.DISCONNECT.name()));
 
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    //frames taken off the writeQueue and not fully written yet. only touched by the selector thread
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER_BUFFERS];
+    //frames sent in pieces, in the order their markers were queued. a marker holds the stream's place in the
+    //queue, the frames behind it wait until its pieces are written, see openStream
+    private final Queue<Stream> streams = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<ByteBuffer> streamed = new ArrayDeque<>(); //pieces moving to the outbound deque
+    //messages decoded from one read. reused, since the actor pool runs one read task of a connection at a time
+    private final List<T> decoded = new ArrayList<>();
+    //true while OP_WRITE is requested (or about to be) and the queue was not flushed yet,
+    //so senders register at most one interest change per flush
+    private final AtomicBoolean writePending = new AtomicBoolean(false);
+    //bytes queued for this connection and not written to the socket yet
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    private final AtomicLong droppedFrames = new AtomicLong(0);
+    private volatile boolean shedding = false; //DROP_NEWEST is dropping until the low watermark is reached
+    private final AtomicBoolean dropOldestPending = new AtomicBoolean(false); //DROP_OLDEST asked the selector to make room
+    private final AtomicBoolean evicted = new AtomicBoolean(false); //DISCONNECT was triggered, nothing more is queued
+    private volatile boolean closing = false; //close() was called, queued frames are flushed and nothing more is queued
+
+    //heart-beat state, only touched by the selector thread
+    private long lastRead = System.currentTimeMillis();
+    private long lastWrite = System.currentTimeMillis();
+    private long heartbeatInterval = 0; //send a heart-beat after this much write silence, 0 for never
+    private long readTimeout = 0; //evict after this much read silence, 0 for never
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final ActorThreadPool.Mailbox mailbox; //orders this connection's read tasks
+    private final EventLoop<T> loop;
     private final Connections<T> connections; 
     private final int connectionId;           
 
@@ -29,22 +73,27 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             MessageEncoderDecoder<T> reader,
             StompMessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor,
+            EventLoop<T> loop,
             Connections<T> connections, int connection_id) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
         this.connections = connections;
         this.connectionId = connection_id;
+        this.mailbox = new ActorThreadPool.Mailbox(connection_id);
     }
 
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        ByteBuffer buf = BufferPool.lease(BUFFER_ALLOCATION_SIZE);
 
         boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            int read = chan.read(buf);
+            success = read != -1;
+            if (read > 0) {
+                lastRead = System.currentTimeMillis(); //only bytes prove the peer alive, not an end of stream
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -53,31 +102,121 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             buf.flip();
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage); //The change from original skeleton: process is 'void' now
-                            
-                        }
+                    encdec.decode(buf, decoded); //decode the whole read at once
+                    for (T nextMessage : decoded) {
+                        protocol.process(nextMessage); //The change from original skeleton: process is 'void' now
                     }
                 } finally {
-                    releaseBuffer(buf);
+                    decoded.clear();
+                    BufferPool.release(buf);
                 }
             };
         } else {
-            releaseBuffer(buf);
+            BufferPool.release(buf);
             connections.disconnect(connectionId); //Instead of just "close()", to ensure disconnection was recorded. In disconnect we call close() anyway
             return null;
         }
 
     }
 
+    //the socket is closed once the frames queued so far are written, or after CLOSE_LINGER_MS at the latest
     public void close() {
+        closing = true;
+        loop.execute(this::closeWhenFlushed);
+    }
+
+    //selector thread: the outbound deque is only touched there
+    private void closeWhenFlushed() {
+        if (!chan.isOpen()) return;
+        if (outbound.isEmpty() && writeQueue.isEmpty()) {
+            closeNow();
+            return;
+        }
+        loop.updateInterestedOps(chan, SelectionKey.OP_WRITE); //stop reading, keep writing
+        loop.schedule(now -> {
+            closeNow();
+            return -1;
+        }, CLOSE_LINGER_MS);
+    }
+
+    //selector thread only
+    private void closeNow() {
+        if (!chan.isOpen()) return;
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        releasePending();
+    }
+
+    private void releasePending() {
+        ByteBuffer buf;
+        while ((buf = outbound.poll()) != null) {
+            BufferPool.release(buf);
+        }
+        while ((buf = writeQueue.poll()) != null) {
+            queuedBytes.addAndGet(-buf.remaining());
+            if (!isMarker(buf)) BufferPool.release(buf);
+        }
+        releaseStreams();
+    }
+
+    //the pieces of streams that will not be written any more
+    private void releaseStreams() {
+        Stream stream;
+        while ((stream = streams.poll()) != null) {
+            ByteBuffer piece;
+            while ((piece = stream.pieces.poll()) != null) {
+                BufferPool.release(piece);
+            }
+        }
+    }
+
+    @Override
+    public void configureHeartbeat(long sendInterval, long receiveTimeout) {
+        loop.execute(() -> {
+            boolean wasScheduled = heartbeatInterval > 0 || readTimeout > 0;
+            heartbeatInterval = sendInterval;
+            readTimeout = receiveTimeout;
+            long now = System.currentTimeMillis();
+            lastRead = now;
+            lastWrite = now;
+            long delay = nextHeartbeatCheck(now);
+            if (!wasScheduled && delay >= 0) {
+                loop.schedule(this::onHeartbeatTimer, delay);
+            }
+        });
+    }
+
+    //timing wheel callback: evicts a silent peer, or keeps a quiet connection alive with an EOL
+    private long onHeartbeatTimer(long now) {
+        if (!chan.isOpen()) {
+            return -1;
+        }
+        if (readTimeout > 0 && now - lastRead >= readTimeout) {
+            heartbeatInterval = 0;
+            readTimeout = 0;
+            connections.disconnect(connectionId); //peer is gone, stop paying for it
+            return -1;
+        }
+        if (heartbeatInterval > 0 && now - lastWrite >= heartbeatInterval) {
+            lastWrite = now;
+            enqueue(ByteBuffer.wrap(HEARTBEAT).asReadOnlyBuffer());
+        }
+        return nextHeartbeatCheck(now);
+    }
+
+    //milliseconds until the heart-beat state must be checked again, -1 if heart-beats are off
+    private long nextHeartbeatCheck(long now) {
+        long next = Long.MAX_VALUE;
+        if (readTimeout > 0) next = Math.min(next, lastRead + readTimeout - now);
+        if (heartbeatInterval > 0) next = Math.min(next, lastWrite + heartbeatInterval - now);
+        return next == Long.MAX_VALUE ? -1 : Math.max(0, next);
+    }
+
+    /*package*/ ActorThreadPool.Mailbox mailbox() {
+        return mailbox;
     }
 
     public boolean isClosed() {
@@ -85,40 +224,135 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        while (true) {
+            moveToOutbound();
+            if (!expandStream()) {
+                waitForPieces();
+                return;
+            }
+            if (outbound.isEmpty()) break;
+
+            //collect as many pending buffers as allowed and write them with a single syscall.
+            //a stream's marker ends the batch, its pieces are put in its place first
+            int count = 0;
+            long bytes = 0;
+            for (ByteBuffer buf : outbound) {
+                if (count == MAX_GATHER_BUFFERS || bytes >= MAX_GATHER_BYTES || isMarker(buf)) break;
+                gather[count++] = buf;
+                bytes += buf.remaining();
+            }
+
+            long written;
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
-                }
+                written = chan.write(gather, 0, count);
             } catch (IOException ex) {
                 ex.printStackTrace();
-                close();
+                closeNow();
                 return;
+            } finally {
+                Arrays.fill(gather, 0, count, null);
+            }
+
+            queuedBytes.addAndGet(-written);
+            if (written > 0) lastWrite = System.currentTimeMillis();
+
+            //drop the buffers that were fully written
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining() && !isMarker(outbound.peek())) {
+                BufferPool.release(outbound.poll());
+            }
+
+            if (written < bytes) {
+                return; //socket buffer is full, wait for the next writable event
             }
         }
 
         if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+            if (closing || protocol.shouldTerminate()) closeNow();
+            else {
+                writePending.set(false);
+                loop.updateInterestedOps(chan, SelectionKey.OP_READ);
+                //a sender may have queued a frame while it still saw the flag set
+                if (!writeQueue.isEmpty() && writePending.compareAndSet(false, true)) {
+                    loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
         }
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    //markers are the only empty buffers ever queued
+    private static boolean isMarker(ByteBuffer buf) {
+        return buf.capacity() == 0;
+    }
+
+    //if the outbound deque starts with a stream's marker, the pieces that arrived so far are put before it,
+    //and the marker is dropped once the stream is finished. returns false if the stream has no piece to write yet
+    private boolean expandStream() {
+        while (!outbound.isEmpty() && isMarker(outbound.peek())) {
+            Stream stream = streams.peek();
+            if (stream == null || stream.marker != outbound.peek()) {
+                outbound.poll(); //its stream was released, the connection is going away
+                continue;
+            }
+            boolean finished = stream.finished; //read first, so every piece written before finish() is seen
+            ByteBuffer piece;
+            while ((piece = stream.pieces.poll()) != null) {
+                streamed.add(piece);
+            }
+            if (finished) {
+                outbound.poll();
+                streams.poll();
+            }
+            while ((piece = streamed.pollLast()) != null) {
+                outbound.addFirst(piece);
+            }
+            if (!finished) {
+                return !isMarker(outbound.peek());
+            }
         }
+        return true;
+    }
 
-        buff.clear();
-        return buff;
+    //the stream being written waits for its next piece: stop asking for writable events until it comes.
+    //same hand-over as an emptied queue, a piece written meanwhile asks again
+    private void waitForPieces() {
+        writePending.set(false);
+        loop.updateInterestedOps(chan, SelectionKey.OP_READ);
+        Stream stream = streams.peek();
+        if (stream != null && (stream.finished || !stream.pieces.isEmpty()) && writePending.compareAndSet(false, true)) {
+            loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    //moves frames from the writeQueue to the outbound deque.
+    //consecutive small frames are copied together into pooled direct buffers, larger ones are kept as is
+    private void moveToOutbound() {
+        ByteBuffer staging = null;
+        ByteBuffer next;
+        while (outbound.size() < MAX_GATHER_BUFFERS && (next = writeQueue.poll()) != null) {
+            if (next.remaining() <= COALESCE_THRESHOLD && !isMarker(next)) {
+                if (staging != null && staging.remaining() < next.remaining()) {
+                    staging.flip();
+                    outbound.add(staging);
+                    staging = null;
+                }
+                if (staging == null) {
+                    staging = BufferPool.lease(BUFFER_ALLOCATION_SIZE);
+                }
+                staging.put(next);
+                BufferPool.release(next);
+            } else {
+                if (staging != null) {
+                    staging.flip();
+                    outbound.add(staging);
+                    staging = null;
+                }
+                outbound.add(next);
+            }
+        }
+        if (staging != null) {
+            staging.flip();
+            outbound.add(staging);
+        }
     }
 
     @Override
@@ -128,15 +362,198 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             // 1. Convert the message object into a byte array using the encoder
             byte[] encodedMsg = encdec.encode(msg);
 
-            // 2. Wrap the byte array in a ByteBuffer so the SocketChannel can read it
-            ByteBuffer wrappedEncodedMsg = ByteBuffer.wrap(encodedMsg);
+            // 2. Copy the bytes into a pooled direct buffer so the SocketChannel can write it without another copy
+            ByteBuffer pooledMsg = BufferPool.lease(encodedMsg.length);
+            pooledMsg.put(encodedMsg).flip();
 
             // 3. Add the buffer to the queue of messages waiting to be sent
-            writeQueue.add(wrappedEncodedMsg);
+            enqueue(pooledMsg);
+        }
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer frame) {
+        if (frame != null) {
+            enqueue(frame);
+        }
+    }
+
+    /**
+     * The whole frame is admitted up front, so the slow consumer policy never cuts it in the middle.
+     * Its marker takes its place in the write queue, the pieces are written there as they come
+     */
+    @Override
+    public FrameStream openStream(int length) {
+        if (evicted.get() || closing || !chan.isOpen()) {
+            return null;
+        }
+        if (!admit(length)) {
+            droppedFrames.incrementAndGet();
+            return null;
+        }
+        Stream stream = new Stream(length);
+        synchronized (streams) { //markers reach the selector thread in the order of the streams
+            streams.add(stream);
+            writeQueue.add(stream.marker);
+        }
+        requestWrite();
+        return stream;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        if (evicted.get() || closing || !chan.isOpen()) {
+            BufferPool.release(frame);
+            return;
+        }
+        int size = frame.remaining();
+
+        //the slow consumer policy only applies to MESSAGE frames, RECEIPT, CONNECTED and ERROR are always queued
+        if (!isMessage(frame)) {
+            queuedBytes.addAndGet(size);
+        } else if (!admit(size)) {
+            droppedFrames.incrementAndGet();
+            BufferPool.release(frame);
+            return;
+        }
+
+        writeQueue.add(frame);
+        requestWrite();
+    }
+
+    //MESSAGE is the only frame the server sends that starts with an 'M'
+    private static boolean isMessage(ByteBuffer frame) {
+        return frame.hasRemaining() && frame.get(frame.position()) == 'M';
+    }
 
-            // 4. Tell the Reactor to listen for WRITE events (so it knows we have something to send)
-            // We use the bitwise OR (|) to keep the READ interest while adding the WRITE interest
-            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    /**
+     * reserves room for a MESSAGE frame of the given size, applying the slow consumer policy once the queue is full.
+     * runs on any sender thread: the watermark check and the reservation are a single CAS, so concurrent senders
+     * cannot both slip under the high watermark. returns false if the frame should not be queued
+     */
+    private boolean admit(int size) {
+        if (shedding) {
+            if (queuedBytes.get() > LOW_WATERMARK) return false;
+            shedding = false;
+        }
+        while (true) {
+            long queued = queuedBytes.get();
+            if (queued + size > HIGH_WATERMARK) break;
+            if (queuedBytes.compareAndSet(queued, queued + size)) return true;
+        }
+
+        switch (SLOW_CONSUMER_POLICY) {
+            case DROP_OLDEST:
+                //the frame is queued, the selector thread then drops older MESSAGE frames to make room
+                queuedBytes.addAndGet(size);
+                if (dropOldestPending.compareAndSet(false, true)) {
+                    loop.execute(this::dropOldest);
+                }
+                return true;
+            case DROP_NEWEST:
+                shedding = true;
+                return false;
+            default:
+                evict();
+                return false;
+        }
+    }
+
+    //selector thread: DROP_OLDEST, discards queued MESSAGE frames oldest first until the queue is under the low watermark.
+    //the other frames are moved to the outbound deque in their order, so they are still written.
+    //frames in the writeQueue were not started yet, so dropping them keeps the stream intact
+    private void dropOldest() {
+        dropOldestPending.set(false);
+        if (!chan.isOpen()) return; //the pending frames were released already
+        ByteBuffer oldest;
+        while (queuedBytes.get() > LOW_WATERMARK && (oldest = writeQueue.poll()) != null) {
+            if (isMessage(oldest)) {
+                queuedBytes.addAndGet(-oldest.remaining());
+                droppedFrames.incrementAndGet();
+                BufferPool.release(oldest);
+            } else {
+                outbound.add(oldest);
+            }
+        }
+    }
+
+    //drops everything still queued, tries to deliver an ERROR frame and disconnects the client.
+    //concurrent senders may all overflow the queue, only the first one evicts
+    private void evict() {
+        if (!evicted.compareAndSet(false, true)) return;
+        ByteBuffer dropped;
+        while ((dropped = writeQueue.poll()) != null) {
+            queuedBytes.addAndGet(-dropped.remaining());
+            droppedFrames.incrementAndGet();
+            if (!isMarker(dropped)) BufferPool.release(dropped); //the stream's pieces go when the connection closes
+        }
+        ByteBuffer error = ByteBuffer.wrap(("ERROR\nmessage:slow consumer\n\n"
+                + "write queue exceeded " + HIGH_WATERMARK + " bytes\n\u0000").getBytes(StandardCharsets.UTF_8));
+        queuedBytes.addAndGet(error.remaining());
+        writeQueue.add(error);
+        //one non blocking flush attempt on the selector thread, then the connection is closed regardless
+        loop.execute(() -> {
+            continueWrite();
+            connections.disconnect(connectionId);
+            closeNow();
+        });
+    }
+
+    //a frame written in pieces, see openStream
+    private class Stream implements FrameStream {
+        private final ByteBuffer marker = ByteBuffer.allocate(0);
+        private final Queue<ByteBuffer> pieces = new ConcurrentLinkedQueue<>();
+        private volatile boolean finished = false;
+        private long unwritten; //bytes admitted for the frame and not handed over as pieces yet
+
+        Stream(int length) {
+            unwritten = length;
+        }
+
+        @Override
+        public void write(ByteBuffer piece) {
+            if (finished || evicted.get() || !chan.isOpen()) {
+                BufferPool.release(piece);
+                return;
+            }
+            unwritten -= piece.remaining();
+            pieces.add(piece);
+            requestWrite();
+        }
+
+        @Override
+        public void finish() {
+            if (finished) return;
+            queuedBytes.addAndGet(-unwritten); //nothing, unless the frame was cut short
+            unwritten = 0;
+            finished = true;
+            requestWrite();
+        }
+
+        @Override
+        public void abort() {
+            if (finished) return;
+            finish();
+            close(); //what follows the cut frame would not make sense to the peer
+        }
+    }
+
+    private void requestWrite() {
+        // 4. Tell the event loop to listen for WRITE events (so it knows we have something to send)
+        // We use the bitwise OR (|) to keep the READ interest while adding the WRITE interest
+        // Only the first frame since the last flush does so, the others ride on the same write event
+        if (writePending.compareAndSet(false, true)) {
+            loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            loop.interestUpdateCoalesced();
         }
     }
 }
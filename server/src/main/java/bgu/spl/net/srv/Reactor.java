@@ -1,17 +1,15 @@
 package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
-import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -20,19 +18,33 @@ public class Reactor<T> implements Server<T> {
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
-    private Selector selector;
 
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    //number of selector loops serving client connections.
+    //0 means the classic single reactor: the acceptor loop also does all reads and writes
+    private final int numEventLoops;
+    private EventLoop<T> acceptorLoop;
+    private EventLoop<T>[] eventLoops;
+    private int nextLoop = 0; //only touched by the acceptor thread
+
+    private ConnectionsImpl<T> connections;
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, 0, port, protocolFactory, readerFactory);
+    }
 
-    private Connections<T> connections;
     public Reactor(
             int numThreads,
+            int numEventLoops,
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
         this.pool = new ActorThreadPool(numThreads);
+        this.numEventLoops = Math.max(0, numEventLoops);
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
@@ -41,106 +53,130 @@ public class Reactor<T> implements Server<T> {
 
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
-
-            this.selector = selector; //just to be able to close
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+
+            acceptorLoop = new EventLoop<>(this, pool);
+            //an array cannot be created with a type parameter, it only ever holds loops built here
+            @SuppressWarnings("unchecked")
+            EventLoop<T>[] loops = (EventLoop<T>[]) new EventLoop<?>[numEventLoops];
+            eventLoops = loops;
+            for (int i = 0; i < numEventLoops; i++) {
+                eventLoops[i] = new EventLoop<>(this, pool);
+                Thread loopThread = new Thread(eventLoops[i], "reactor-loop-" + i);
+                loopThread.setDaemon(true);
+                loopThread.start();
+            }
 
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            serverSock.register(acceptorLoop.selector(), SelectionKey.OP_ACCEPT);
 			System.out.println("Server started");
 
-            while (!Thread.currentThread().isInterrupted()) {
+            acceptorLoop.run(); //the acceptor runs on the serving thread
 
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
-                }
-
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
-
-            }
-
-        } catch (ClosedSelectorException ex) {
-            //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
+        } finally {
+            closeLoops();
         }
 
         System.out.println("server closed!!!");
         pool.shutdown();
+        connections.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
-        }
-    }
-
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+    /*package*/ void handleAccept(ServerSocketChannel serverChan) throws IOException {
         SocketChannel clientChan = serverChan.accept();
+        if (clientChan == null) return; //spurious accept event
         clientChan.configureBlocking(false);
         StompMessagingProtocol<T> stompProtocol = protocolFactory.get();
         int connection_id = connections.getNewConnectionId();
         stompProtocol.start(connection_id, connections);
 
-
+        EventLoop<T> loop = nextEventLoop();
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<T>(
                 readerFactory.get(),
                 stompProtocol,
                 clientChan,
-                this,
+                loop,
                 connections,
                 connection_id);
         //We add this client to "connections" before the Reactor registers it to the selector
         connections.addConnection(connection_id, handler);
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        loop.register(clientChan, handler);
     }
 
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+    //round robin assignment of new connections to the selector loops
+    private EventLoop<T> nextEventLoop() {
+        if (numEventLoops == 0) {
+            return acceptorLoop;
+        }
+        EventLoop<T> loop = eventLoops[nextLoop];
+        nextLoop = (nextLoop + 1) % numEventLoops;
+        return loop;
+    }
 
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
+    //connections registered with each selector loop, the acceptor loop is not counted.
+    //read from another thread, so only a hint while connections come and go
+    /*package*/ int[] connectionsPerLoop() {
+        int[] counts = new int[numEventLoops];
+        for (int i = 0; i < numEventLoops; i++) {
+            counts[i] = eventLoops[i].selector().keys().size();
         }
+        return counts;
+    }
+
+    //selector wakeups issued by all loops
+    public long getWakeups() {
+        long sum = 0;
+        for (EventLoop<T> loop : allLoops()) sum += loop.getWakeups();
+        return sum;
+    }
+
+    //selector wakeups saved because a wakeup was already pending for the batch
+    public long getWakeupsAvoided() {
+        long sum = 0;
+        for (EventLoop<T> loop : allLoops()) sum += loop.getWakeupsAvoided();
+        return sum;
+    }
+
+    //interest-op changes skipped because the connection already had a write pending
+    public long getInterestUpdatesCoalesced() {
+        long sum = 0;
+        for (EventLoop<T> loop : allLoops()) sum += loop.getInterestUpdatesCoalesced();
+        return sum;
+    }
+
+    //connections with tasks waiting per protocol worker, to spot hot shards
+    public int[] getWorkerQueuedMailboxes() {
+        return pool.getQueuedMailboxes();
+    }
 
-	    if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
+    private List<EventLoop<T>> allLoops() {
+        List<EventLoop<T>> loops = new ArrayList<>();
+        if (acceptorLoop != null) loops.add(acceptorLoop);
+        if (eventLoops != null) {
+            for (EventLoop<T> loop : eventLoops) {
+                if (loop != null) loops.add(loop);
+            }
         }
+        return loops;
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    private void closeLoops() {
+        try {
+            for (EventLoop<T> loop : allLoops()) {
+                loop.close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        closeLoops();
     }
 
 }
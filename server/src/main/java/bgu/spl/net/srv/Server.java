@@ -4,6 +4,7 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Supplier;
 
 public interface Server<T> extends Closeable {
@@ -28,13 +29,36 @@ public interface Server<T> extends Closeable {
 
         return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
             @Override
-            protected void execute(BlockingConnectionHandler<T>  handler) {
-                new Thread(handler).start();
+            protected void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        };
+
+    }
+
+
+    /**
+     *This function returns a new instance of a thread per client server that runs every client on a virtual thread
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T>  virtualThreadPerClient(
+            int port,
+            Supplier<StompMessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        ThreadFactory threads = VirtualThreads.factory("client-");
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(Runnable task) {
+                threads.newThread(task).start();
             }
         };
 
     }
-    
 
     /**
      * This function returns a new instance of a reactor pattern server
@@ -53,4 +77,24 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * This function returns a new instance of a multi reactor pattern server:
+     * one acceptor loop plus a group of selector loops that connections are spread over
+     * @param nthreads Number of threads available for protocol processing
+     * @param nEventLoops Number of selector loops serving the connections (0 for a single reactor)
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nEventLoops,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nEventLoops, port, protocolFactory, encoderDecoderFactory);
+    }
+
 }
@@ -0,0 +1,136 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed set of workers, each with its own queue. Tasks are routed by a key (the connection id),
+ * so the same connection keeps running on the same thread and its state stays in that core's cache.
+ * With work stealing on, an idle worker takes tasks from backed up workers to even out hot shards.
+ * Idle workers block on their own queue. When a queue backs up, one idle worker is woken to steal from it,
+ * so an idle server does not spend any CPU on looking for work.
+ */
+public class ShardedExecutor {
+
+    private static final int STEAL_THRESHOLD = 2; //only steal from workers with at least this many queued tasks
+    private static final Runnable WAKE_UP = () -> { }; //queued to an idle worker to make it look for work to steal
+
+    private final Worker[] workers;
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>(); //workers that may be blocked
+    private final boolean workStealing;
+    private volatile boolean shutdown = false;
+
+    public ShardedExecutor(int nthreads, boolean workStealing) {
+        this.workStealing = workStealing;
+        this.workers = new Worker[Math.max(1, nthreads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * queues the task on the worker owning the given key
+     */
+    public void execute(Runnable task, int key) {
+        Worker worker = workers[Math.floorMod(key, workers.length)];
+        worker.queue.add(task);
+        if (workStealing && worker.queue.size() >= STEAL_THRESHOLD) {
+            wakeIdleWorker();
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        for (Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+    }
+
+    //runnables waiting in each worker's queue, indexed by worker. for ActorThreadPool these are mailboxes, not tasks
+    public int[] getQueueLengths() {
+        int[] depths = new int[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            depths[i] = workers[i].queue.size();
+        }
+        return depths;
+    }
+
+    //tasks each worker took from other workers' queues, indexed by worker
+    public long[] getStolenCounts() {
+        long[] stolen = new long[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            stolen[i] = workers[i].stolen.sum();
+        }
+        return stolen;
+    }
+
+    //hands a wake-up to one worker that went idle, if there is one
+    private void wakeIdleWorker() {
+        Worker thief;
+        while ((thief = idle.poll()) != null) {
+            thief.idling.set(false);
+            if (thief.queue.isEmpty()) {
+                thief.queue.add(WAKE_UP);
+                return;
+            } //a worker with queued work is not blocked, try the next one
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final int index;
+        private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        private final LongAdder stolen = new LongAdder();
+        private final AtomicBoolean idling = new AtomicBoolean(false); //listed in the idle queue
+        private final Thread thread;
+
+        Worker(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "shard-worker-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                try {
+                    Runnable task = queue.poll();
+                    if (task == null && workStealing) {
+                        task = steal();
+                        if (task == null) {
+                            if (idling.compareAndSet(false, true)) {
+                                idle.add(this);
+                            }
+                            task = steal(); //a queue may have backed up just before we were listed
+                        }
+                    }
+                    if (task == null) {
+                        task = queue.take();
+                    }
+                    task.run();
+                } catch (InterruptedException ex) {
+                    //shutdown requested
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        private Runnable steal() {
+            for (int i = 1; i < workers.length; i++) {
+                Worker victim = workers[(index + i) % workers.length];
+                if (victim.queue.size() >= STEAL_THRESHOLD) {
+                    Runnable task = victim.queue.poll();
+                    if (task != null) {
+                        stolen.increment();
+                        return task;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
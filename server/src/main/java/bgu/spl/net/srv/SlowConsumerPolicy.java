@@ -0,0 +1,10 @@
+package bgu.spl.net.srv;
+
+/**
+ * What a connection does with a new outgoing frame once its write queue reached the high watermark.
+ */
+public enum SlowConsumerPolicy {
+    DROP_OLDEST, //discard queued frames, oldest first, until the queue is back under the low watermark
+    DROP_NEWEST, //discard new frames until the queue drains under the low watermark
+    DISCONNECT //send an ERROR frame and close the connection
+}
@@ -0,0 +1,109 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel, used by an event loop to drive heart-beats and idle eviction.
+ * A timeout lands in the slot of its deadline and is only looked at when the wheel reaches that slot,
+ * so every tick costs the timeouts that actually expire, no matter how many connections are tracked.
+ * Not thread safe: it is owned and advanced by a single selector thread.
+ */
+public class TimingWheel {
+
+    /**
+     * Work run when a timeout expires.
+     */
+    public interface Task {
+        /**
+         * @param now current time in milliseconds
+         * @return milliseconds until the task should run again, or a negative number to stop
+         */
+        long run(long now);
+    }
+
+    private final long tickMs;
+    private final List<List<Entry>> slots;
+    private final int mask;
+    private long currentTick;
+    private long nextTickAt; //wall time of the next tick to process
+    private int size = 0;
+
+    public TimingWheel(long tickMs, int wheelSize) {
+        int slotCount = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1; //power of two
+        this.tickMs = tickMs;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.mask = slotCount - 1;
+        this.currentTick = 0;
+        this.nextTickAt = System.currentTimeMillis() + tickMs;
+    }
+
+    public void schedule(Task task, long delayMs) {
+        if (size == 0) {
+            nextTickAt = System.currentTimeMillis() + tickMs; //the wheel was idle, restart ticking from now
+        }
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        long rounds = (ticks - 1) / slots.size();
+        slots.get((int) ((currentTick + ticks) & mask)).add(new Entry(task, rounds));
+        size++;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return milliseconds until the next tick is due, 0 if it is already due
+     */
+    public long millisToNextTick(long now) {
+        return Math.max(0, nextTickAt - now);
+    }
+
+    /**
+     * runs every timeout due up to now, rescheduling the tasks that ask for it
+     */
+    public void advance(long now) {
+        while (nextTickAt <= now) {
+            currentTick++;
+            nextTickAt += tickMs;
+
+            List<Entry> slot = slots.get((int) (currentTick & mask));
+            if (slot.isEmpty()) continue;
+
+            //swap the slot out, tasks rescheduled by this tick may land in it again
+            List<Entry> due = new ArrayList<>(slot);
+            slot.clear();
+            for (Entry entry : due) {
+                if (entry.rounds > 0) {
+                    entry.rounds--;
+                    slot.add(entry);
+                    continue;
+                }
+                size--;
+                long next;
+                try {
+                    next = entry.task.run(now);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                    next = -1;
+                }
+                if (next >= 0) {
+                    schedule(entry.task, next);
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Task task;
+        private long rounds; //full turns of the wheel left before the entry expires
+
+        Entry(Task task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+    }
+}
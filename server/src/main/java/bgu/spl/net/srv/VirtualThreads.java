@@ -0,0 +1,53 @@
+package bgu.spl.net.srv;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Looks up the virtual thread API (final in Java 21) at runtime,
+ * so the server still builds and runs on older JDKs, falling back to platform threads.
+ */
+/*package*/ final class VirtualThreads {
+
+    private static final Method IS_VIRTUAL = lookupIsVirtual();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the thread is a virtual thread, false on JVMs without them
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) return false;
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException ex) {
+            return false;
+        }
+    }
+
+    private static Method lookupIsVirtual() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param namePrefix prefix of the created threads' names, followed by a counter
+     * @return a factory of virtual threads, or of platform threads if the JVM has none
+     */
+    static ThreadFactory factory(String namePrefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            Method factory = builderType.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            System.out.println("virtual threads are not available on this JVM (Java 21+ needed), using platform threads");
+            return Thread::new;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class GameStateTest {
+
+    private static String report(String user, String event, int time, String general, String teamA) {
+        return "user:" + user + "\n"
+                + "team a:Germany\nteam b:Japan\n"
+                + "event name:" + event + "\ntime:" + time + "\n"
+                + "general game updates:\n" + general
+                + "team a updates:\n" + teamA
+                + "team b updates:\n"
+                + "description:\nsomething: that looks like an update\n";
+    }
+
+    @Test
+    void laterReportsOverwriteTheKeysTheyMention() {
+        GameState state = new GameState();
+        state.apply(report("alice", "kickoff", 0, "active: true\nbefore halftime: true\n", "goals: 0\n"));
+        state.apply(report("bob", "goal!!!", 33, "", "goals: 1\npossession: 51%\n"));
+
+        String snapshot = state.snapshot();
+        assertEquals(2, state.getEvents());
+        assertEquals("user:" + GameState.SNAPSHOT_USER + "\n"
+                + "team a:Germany\nteam b:Japan\n"
+                + "event name:goal!!!\ntime:33\nevents:2\n"
+                + "general game updates:\nactive: true\nbefore halftime: true\n"
+                + "team a updates:\ngoals: 1\npossession: 51%\n"
+                + "team b updates:\n"
+                + "description:snapshot of 2 events\n", snapshot);
+    }
+
+    @Test
+    void snapshotNamesAReporterTheClientStoresItUnder() {
+        GameState state = new GameState();
+        state.apply(report("alice", "kickoff", 0, "", ""));
+        //the client keys stored events by the first "user:" line of the body
+        assertTrue(state.snapshot().startsWith("user:snapshot\n"));
+    }
+}
@@ -0,0 +1,141 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.BufferPool;
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.ConnectionsImpl;
+
+/**
+ * Bytes allocated per inbound frame, counted by the JVM for the test thread.
+ * Runs the real decoder, protocol and ConnectionsImpl, only the socket is replaced by a handler that
+ * releases what it is given.
+ */
+class SendPathAllocationTest {
+
+    private static final int FRAMES = 20_000;
+    private static final int ROUNDS = 5;
+    //what a SEND still allocates: the MESSAGE frame shared by its subscribers, which outlives the read buffer,
+    //that is the object and its head and tail arrays. 168 bytes on a 64 bit JVM with compressed oops
+    private static final double SEND_BUDGET = 200;
+
+    private static final byte[] SEND = ("SEND\ndestination:/alloc/game\nreceipt:42\n\nsome report body\n\u0000")
+            .getBytes(StandardCharsets.UTF_8);
+
+    //answers every statement, so logins neither need nor write to a running SQL server
+    private static class StubDatabase extends Database {
+        @Override
+        protected String executeSQL(String sql) {
+            return "SUCCESS";
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "no per-thread allocation counter");
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled(),
+                "per-thread allocation counting is off");
+        return counter;
+    }
+
+    private static void process(StompEncoderDecoder decoder, StompMessagingProtocolImpl protocol, List<RawFrame> out, ByteBuffer in) {
+        decoder.decode(in, out);
+        for (int i = 0; i < out.size(); i++) {
+            protocol.process(out.get(i));
+        }
+        out.clear();
+    }
+
+    //fewest bytes per frame over a few rounds, the first ones warm up the JIT and the pools
+    private static double bytesPerFrame(com.sun.management.ThreadMXBean counter, Runnable frame) {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = counter.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < FRAMES; i++) {
+                frame.run();
+            }
+            long after = counter.getCurrentThreadAllocatedBytes();
+            best = Math.min(best, (after - before) / (double) FRAMES);
+        }
+        return best;
+    }
+
+    @Test
+    void decodingAFrameAllocatesNothing() {
+        com.sun.management.ThreadMXBean counter = allocationCounter();
+        StompEncoderDecoder decoder = new StompEncoderDecoder();
+        List<RawFrame> out = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.allocateDirect(SEND.length);
+
+        double perFrame = bytesPerFrame(counter, () -> {
+            in.clear();
+            in.put(SEND).flip();
+            decoder.decode(in, out);
+            if (out.size() != 1 || out.get(0).getCommand() != StompCommand.SEND) {
+                throw new AssertionError("expected one SEND frame");
+            }
+            out.clear();
+        });
+
+        assertEquals(0, perFrame, 1, "bytes allocated per decoded frame");
+    }
+
+    @Test
+    void sendWithReceiptOnlyAllocatesTheOutgoingMessage() {
+        com.sun.management.ThreadMXBean counter = allocationCounter();
+        Database database = new StubDatabase();
+        ConnectionsImpl<RawFrame> connections = new ConnectionsImpl<>(database);
+        //past the Integer cache, as on a busy server, so a lookup that boxed the id would show up
+        int connectionId = connections.getNewConnectionId() + 1000;
+        int[] sent = new int[1];
+        connections.addConnection(connectionId, new ConnectionHandler<RawFrame>() {
+            @Override
+            public void send(RawFrame msg) {
+            }
+
+            @Override
+            public void sendEncoded(ByteBuffer frame) {
+                sent[0]++;
+                BufferPool.release(frame);
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        StompMessagingProtocolImpl protocol = new StompMessagingProtocolImpl(database);
+        protocol.start(connectionId, connections);
+        StompEncoderDecoder decoder = new StompEncoderDecoder();
+        List<RawFrame> out = new ArrayList<>();
+
+        process(decoder, protocol, out, ByteBuffer.wrap(("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:alloc"
+                + "\npasscode:p\n\n\u0000").getBytes(StandardCharsets.UTF_8)));
+        process(decoder, protocol, out, ByteBuffer.wrap("SUBSCRIBE\ndestination:/alloc/game\nid:7\n\n\u0000"
+                .getBytes(StandardCharsets.UTF_8)));
+        assertTrue(!protocol.shouldTerminate(), "client was turned away");
+
+        ByteBuffer in = ByteBuffer.allocateDirect(SEND.length);
+        sent[0] = 0;
+        double perFrame = bytesPerFrame(counter, () -> {
+            in.clear();
+            in.put(SEND).flip();
+            process(decoder, protocol, out, in);
+        });
+
+        //the MESSAGE to the sender's own subscription and the RECEIPT
+        assertEquals(2L * FRAMES * ROUNDS, sent[0]);
+        assertTrue(perFrame < SEND_BUDGET, "bytes allocated per SEND: " + perFrame);
+    }
+}
@@ -0,0 +1,270 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class StompEncoderDecoderTest {
+
+    private static final String SEND = "SEND\ndestination:/wc/g1\nreceipt:7\n\nhello\n\u0000";
+
+    private final StompEncoderDecoder decoder = new StompEncoderDecoder();
+
+    //what a handed out frame holds, copied out since the frame is only valid until the next decode call
+    private static final class Decoded {
+        final StompCommand command;
+        final String destination;
+        final byte[] body;
+        final boolean valid;
+        final String error;
+        final boolean streamed;
+        final boolean part;
+        final boolean lastPart;
+
+        Decoded(RawFrame frame) {
+            streamed = frame.isStreamed();
+            part = frame.isBodyPart();
+            lastPart = frame.isLastPart();
+            if (part) { //the next bytes of a body, not a frame
+                valid = true;
+                error = null;
+                command = null;
+                destination = null;
+                body = Arrays.copyOfRange(frame.array(), frame.getOffset(), frame.getOffset() + frame.getLength());
+                return;
+            }
+            valid = frame.checkFrame();
+            error = frame.getError();
+            command = frame.getCommand();
+            destination = frame.getHeader("destination");
+            body = Arrays.copyOfRange(frame.array(), frame.getBodyOffset(), frame.getBodyOffset() + frame.getBodyLength());
+        }
+    }
+
+    private List<Decoded> feed(byte[] bytes, int from, int to) {
+        List<RawFrame> out = new ArrayList<>();
+        decoder.decode(bytes, from, to - from, out);
+        List<Decoded> decoded = new ArrayList<>();
+        for (RawFrame frame : out) {
+            decoded.add(new Decoded(frame));
+        }
+        return decoded;
+    }
+
+    //feeds the bytes in reads of at most chunk bytes
+    private List<Decoded> feedChunked(byte[] bytes, int chunk) {
+        List<Decoded> decoded = new ArrayList<>();
+        for (int at = 0; at < bytes.length; at += chunk) {
+            decoded.addAll(feed(bytes, at, Math.min(bytes.length, at + chunk)));
+        }
+        return decoded;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] all = new byte[length];
+        int at = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, at, part.length);
+            at += part.length;
+        }
+        return all;
+    }
+
+    @Test
+    void decodesEveryFrameOfOneRead() {
+        byte[] bytes = ascii(SEND + "\n\r\n" + SEND); //heart-beats between the frames
+        List<Decoded> decoded = feed(bytes, 0, bytes.length);
+        assertEquals(2, decoded.size());
+        for (Decoded frame : decoded) {
+            assertTrue(frame.valid);
+            assertEquals(StompCommand.SEND, frame.command);
+            assertEquals("/wc/g1", frame.destination);
+            assertEquals("hello", new String(frame.body, StandardCharsets.UTF_8).trim());
+        }
+    }
+
+    @Test
+    void decodesAFrameSplitAtAnyByte() {
+        byte[] bytes = ascii(SEND + SEND);
+        for (int split = 1; split < bytes.length; split++) {
+            StompEncoderDecoder fresh = new StompEncoderDecoder();
+            List<RawFrame> out = new ArrayList<>();
+            List<String> destinations = new ArrayList<>();
+            fresh.decode(bytes, 0, split, out);
+            out.forEach(frame -> destinations.add(frame.getHeader("destination")));
+            out.clear();
+            fresh.decode(bytes, split, bytes.length - split, out);
+            out.forEach(frame -> destinations.add(frame.getHeader("destination")));
+            assertEquals(List.of("/wc/g1", "/wc/g1"), destinations, "split at " + split);
+        }
+    }
+
+    @Test
+    void decodesOneByteAtATime() {
+        byte[] bytes = ascii(SEND);
+        List<Decoded> decoded = feedChunked(bytes, 1);
+        assertEquals(1, decoded.size());
+        assertEquals("/wc/g1", decoded.get(0).destination);
+    }
+
+    @Test
+    void contentLengthBodyMayHoldNuls() {
+        byte[] body = {'a', 0, 'b', 0, 0, 'c'};
+        byte[] bytes = concat(ascii("SEND\ndestination:/bin\ncontent-length:6\n\n"), body, new byte[]{0},
+                ascii(SEND));
+        for (int chunk : new int[]{bytes.length, 7, 3, 1}) {
+            List<Decoded> decoded = new StompEncoderDecoderTest().feedChunked(bytes, chunk);
+            assertEquals(2, decoded.size(), "chunk " + chunk);
+            assertTrue(decoded.get(0).valid);
+            assertArrayEquals(body, decoded.get(0).body, "chunk " + chunk);
+            assertEquals("/wc/g1", decoded.get(1).destination);
+        }
+    }
+
+    @Test
+    void wrongContentLengthIsReported() {
+        byte[] bytes = ascii("SEND\ndestination:/bin\ncontent-length:2\n\nabc\u0000" + SEND);
+        List<Decoded> decoded = feed(bytes, 0, bytes.length);
+        assertEquals(2, decoded.size());
+        assertFalse(decoded.get(0).valid);
+        assertEquals("content-length does not match the body", decoded.get(0).error);
+        assertTrue(decoded.get(1).valid);
+    }
+
+    //the body parts that follow decoded[first], joined
+    private static byte[] joinParts(List<Decoded> decoded, int first) {
+        List<byte[]> parts = new ArrayList<>();
+        for (int i = first + 1; i < decoded.size() && decoded.get(i).part; i++) {
+            parts.add(decoded.get(i).body);
+            assertEquals(!(i + 1 < decoded.size() && decoded.get(i + 1).part), decoded.get(i).lastPart,
+                    "only the part ending the body is the last one");
+        }
+        return concat(parts.toArray(new byte[0][]));
+    }
+
+    private static byte[] largeBody() {
+        byte[] body = new byte[300_000];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) (i * 31);
+        return body;
+    }
+
+    @Test
+    void largeBodyIsHandedOutInParts() {
+        byte[] body = largeBody();
+        byte[] bytes = concat(ascii("SEND\ndestination:/big\ncontent-length:" + body.length + "\n\n"), body,
+                new byte[]{0}, ascii(SEND));
+        List<Decoded> decoded = feedChunked(bytes, 8192);
+        assertTrue(decoded.get(0).valid);
+        assertTrue(decoded.get(0).streamed);
+        assertEquals("/big", decoded.get(0).destination);
+        assertEquals(0, decoded.get(0).body.length);
+        assertArrayEquals(body, joinParts(decoded, 0));
+        assertTrue(decoded.size() > 3); //one part per read, not the body at once
+        Decoded last = decoded.get(decoded.size() - 1);
+        assertFalse(last.part);
+        assertEquals("/wc/g1", last.destination);
+    }
+
+    @Test
+    void lastPartWaitsForTheTerminator() {
+        byte[] head = ascii("SEND\ndestination:/big\ncontent-length:100000\n\n");
+        byte[] body = new byte[100_000];
+        List<Decoded> decoded = new ArrayList<>(feed(concat(head, body), 0, head.length + body.length));
+        assertEquals(2, decoded.size());
+        assertFalse(decoded.get(1).lastPart); //the terminator is not there yet
+        List<Decoded> end = feed(concat(new byte[]{0}, ascii(SEND)), 0, 1 + SEND.length());
+        assertEquals(2, end.size());
+        assertTrue(end.get(0).part);
+        assertTrue(end.get(0).lastPart);
+        assertEquals(0, end.get(0).body.length);
+        assertEquals("/wc/g1", end.get(1).destination);
+    }
+
+    @Test
+    void largeBodyWithoutTerminatorIsRejected() {
+        byte[] bytes = concat(ascii("SEND\ndestination:/big\ncontent-length:100000\n\n"), new byte[100_000],
+                ascii("x" + SEND));
+        List<Decoded> decoded = feedChunked(bytes, 4096);
+        Decoded last = decoded.get(decoded.size() - 1); //nothing after the rejected frame is decoded
+        assertFalse(last.part);
+        assertFalse(last.valid);
+        assertEquals("content-length does not match the body", last.error);
+        for (Decoded frame : decoded) {
+            assertFalse(frame.lastPart);
+        }
+    }
+
+    @Test
+    void oversizedContentLengthIsRejected() {
+        byte[] bytes = ascii("SEND\ndestination:/big\ncontent-length:999999999\n\n");
+        List<Decoded> decoded = feed(bytes, 0, bytes.length);
+        assertEquals(1, decoded.size());
+        assertFalse(decoded.get(0).valid);
+        assertTrue(decoded.get(0).error.startsWith("frame exceeds the maximum size"));
+        assertTrue(feed(ascii(SEND), 0, SEND.length()).isEmpty());
+    }
+
+    @Test
+    void oversizedTextFrameIsRejected() {
+        byte[] chunk = new byte[1 << 16];
+        Arrays.fill(chunk, (byte) 'x');
+        List<Decoded> decoded = new ArrayList<>(feed(ascii("SEND\ndestination:/big\n\n"), 0, 23));
+        for (int i = 0; i < 70 && decoded.isEmpty(); i++) {
+            decoded.addAll(feed(chunk, 0, chunk.length));
+        }
+        assertEquals(1, decoded.size());
+        assertFalse(decoded.get(0).valid);
+        assertTrue(decoded.get(0).error.startsWith("frame exceeds the maximum size"));
+    }
+
+    @Test
+    void decodesFromADirectBuffer() {
+        byte[] bytes = ascii(SEND + SEND);
+        List<String> destinations = new ArrayList<>();
+        List<RawFrame> out = new ArrayList<>();
+        for (int at = 0; at < bytes.length; at += 10) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(10);
+            buffer.put(bytes, at, Math.min(10, bytes.length - at)).flip();
+            decoder.decode(buffer, out);
+            assertFalse(buffer.hasRemaining());
+            out.forEach(frame -> destinations.add(frame.getHeader("destination")));
+            out.clear();
+        }
+        assertEquals(List.of("/wc/g1", "/wc/g1"), destinations);
+    }
+
+    @Test
+    void largeBodyFromADirectBuffer() {
+        byte[] body = largeBody();
+        byte[] bytes = concat(ascii("SEND\ndestination:/big\ncontent-length:" + body.length + "\n\n"), body,
+                new byte[]{0}, ascii(SEND));
+        List<Decoded> decoded = new ArrayList<>();
+        List<RawFrame> out = new ArrayList<>();
+        for (int at = 0; at < bytes.length; at += 8192) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+            buffer.put(bytes, at, Math.min(8192, bytes.length - at)).flip();
+            decoder.decode(buffer, out);
+            assertFalse(buffer.hasRemaining());
+            out.forEach(frame -> decoded.add(new Decoded(frame)));
+            out.clear();
+        }
+        assertTrue(decoded.get(0).streamed);
+        assertArrayEquals(body, joinParts(decoded, 0));
+        assertEquals("/wc/g1", decoded.get(decoded.size() - 1).destination);
+    }
+}
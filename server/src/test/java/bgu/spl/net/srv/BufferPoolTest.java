@@ -0,0 +1,91 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+
+    private static final long MAX_RETAINED_BYTES = 64L << 20; //the default cap
+
+    @Test
+    void leasedBuffersFitTheRequest() {
+        ByteBuffer small = BufferPool.lease(100);
+        ByteBuffer large = BufferPool.lease(1 << 20); //above the largest class, not pooled
+        assertTrue(small.isDirect());
+        assertTrue(small.capacity() >= 100);
+        assertEquals(0, small.position());
+        assertFalse(large.isDirect());
+        assertEquals(1 << 20, large.capacity());
+        BufferPool.release(small);
+        BufferPool.release(large);
+    }
+
+    @Test
+    void releasedBufferIsReused() {
+        ByteBuffer first = BufferPool.lease(8000);
+        first.put((byte) 1);
+        BufferPool.release(first);
+        ByteBuffer second = BufferPool.lease(8000);
+        assertTrue(first == second); //comes straight back from this thread's cache
+        assertEquals(0, second.position());
+        BufferPool.release(second);
+    }
+
+    @Test
+    void viewsAndSecondReleasesAreRefused() {
+        ByteBuffer leased = BufferPool.lease(8000);
+        long refused = BufferPool.getRefused();
+        long returned = BufferPool.getReturned();
+
+        BufferPool.release(leased.duplicate()); //same memory, same capacity, not the leased buffer
+        BufferPool.release(leased);
+        BufferPool.release(leased); //already back in the pool
+        assertEquals(refused + 2, BufferPool.getRefused());
+        assertEquals(returned + 1, BufferPool.getReturned());
+
+        //the buffer is pooled once, so two leases never share it
+        ByteBuffer first = BufferPool.lease(8000);
+        ByteBuffer second = BufferPool.lease(8000);
+        assertTrue(first != second);
+        BufferPool.release(first);
+        BufferPool.release(second);
+    }
+
+    @Test
+    void threadCachesCountAgainstTheCap() throws InterruptedException {
+        //every thread fills its own cache, together they would keep more than the cap
+        List<Thread> threads = new ArrayList<>();
+        List<Thread> done = new ArrayList<>();
+        Object hold = new Object();
+        for (int t = 0; t < 80; t++) {
+            Thread thread = new Thread(() -> {
+                List<ByteBuffer> leased = new ArrayList<>();
+                for (int i = 0; i < 16; i++) leased.add(BufferPool.lease(1 << 16));
+                leased.forEach(BufferPool::release);
+                synchronized (hold) {
+                    done.add(Thread.currentThread());
+                    hold.notifyAll();
+                    while (done.size() < 80) { //stay alive, so the caches are not collected yet
+                        try {
+                            hold.wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertTrue(BufferPool.getRetainedBytes() <= MAX_RETAINED_BYTES, "retained " + BufferPool.getRetainedBytes());
+        assertTrue(BufferPool.getDiscarded() > 0);
+    }
+}
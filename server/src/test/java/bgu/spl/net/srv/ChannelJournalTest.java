@@ -0,0 +1,142 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import bgu.spl.net.impl.stomp.MessageFrame;
+
+class ChannelJournalTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+
+    @TempDir
+    File dir;
+
+    private static List<String> bodies(List<ByteBuffer> frames) {
+        List<String> bodies = new ArrayList<>();
+        for (ByteBuffer frame : frames) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            String text = new String(bytes, StandardCharsets.UTF_8);
+            bodies.add(text.substring(text.indexOf("\n\n") + 2).trim().replace("\u0000", ""));
+            BufferPool.release(frame);
+        }
+        return bodies;
+    }
+
+    private static List<String> range(int from, int to) {
+        List<String> bodies = new ArrayList<>();
+        for (int i = from; i <= to; i++) bodies.add("report " + i);
+        return bodies;
+    }
+
+    private void appendRange(ChannelJournal journal, int from, int to) throws IOException {
+        for (int i = from; i <= to; i++) {
+            journal.append(new MessageFrame(i, "/wc/g1", "report " + i));
+        }
+    }
+
+    @Test
+    void replaysWhatWasAppended() throws IOException {
+        ChannelJournal journal = new ChannelJournal(dir, SEGMENT_BYTES, 100);
+        appendRange(journal, 1, 50); //rolls over several segments
+        assertEquals(50, journal.getLastMessageId());
+        assertEquals(range(1, 50), bodies(journal.replayFrom(0, 7)));
+        assertEquals(range(41, 50), bodies(journal.replayLast(10, 7)));
+        assertEquals(range(30, 50), bodies(journal.replayFrom(30, 7)));
+    }
+
+    @Test
+    void replayCarriesTheSubscriptionId() throws IOException {
+        ChannelJournal journal = new ChannelJournal(dir, SEGMENT_BYTES, 100);
+        journal.append(new MessageFrame(1, "/wc/g1", "report 1"));
+        ByteBuffer frame = journal.replayLast(1, 42).get(0);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        BufferPool.release(frame);
+        assertTrue(new String(bytes, StandardCharsets.UTF_8).contains("\nsubscription:42\n"));
+    }
+
+    @Test
+    void recoversAfterRestart() throws IOException {
+        ChannelJournal journal = new ChannelJournal(dir, SEGMENT_BYTES, 100);
+        appendRange(journal, 1, 40);
+        journal.force();
+
+        ChannelJournal reopened = new ChannelJournal(dir, SEGMENT_BYTES, 100);
+        assertEquals(40, reopened.getLastMessageId());
+        assertEquals(range(1, 40), bodies(reopened.replayFrom(0, 1)));
+
+        appendRange(reopened, 41, 45); //appends continue after the recovered records
+        assertEquals(range(36, 45), bodies(reopened.replayLast(10, 1)));
+    }
+
+    @Test
+    void recoveryDropsATornRecord() throws IOException {
+        ChannelJournal journal = new ChannelJournal(dir, 1 << 16, 100);
+        appendRange(journal, 1, 10);
+        journal.force();
+
+        //corrupt the last record's payload, as a write cut short by a crash would leave it
+        File[] segments = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        assertEquals(1, segments.length);
+        try (RandomAccessFile raf = new RandomAccessFile(segments[0], "rw")) {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            String text = new String(content, StandardCharsets.ISO_8859_1);
+            int at = text.indexOf("report 10");
+            raf.seek(at);
+            raf.write('X');
+        }
+
+        ChannelJournal reopened = new ChannelJournal(dir, 1 << 16, 100);
+        assertEquals(9, reopened.getLastMessageId());
+        assertEquals(range(1, 9), bodies(reopened.replayFrom(0, 1)));
+    }
+
+    @Test
+    void segmentStartsSmallAndGrows() throws IOException {
+        ChannelJournal journal = new ChannelJournal(dir, 1 << 20, 100);
+        journal.append(new MessageFrame(1, "/wc/g1", "report 1"));
+        File[] segments = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        assertEquals(1, segments.length);
+        long initial = segments[0].length();
+        assertTrue(initial < 1 << 20, "mapped " + initial + " bytes for one record");
+
+        String body = new String(new char[1000]).replace('\0', 'x');
+        for (int i = 2; i <= 200; i++) {
+            journal.append(new MessageFrame(i, "/wc/g1", body));
+        }
+        segments = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        assertEquals(1, segments.length); //grew in place instead of rolling
+        assertTrue(segments[0].length() > initial);
+        assertEquals(200, bodies(journal.replayFrom(0, 1)).size());
+        journal.force();
+
+        ChannelJournal reopened = new ChannelJournal(dir, 1 << 20, 100);
+        assertEquals(200, reopened.getLastMessageId());
+    }
+
+    @Test
+    void oldestSegmentsAreDropped() throws IOException {
+        ChannelJournal journal = new ChannelJournal(dir, SEGMENT_BYTES, 2);
+        appendRange(journal, 1, 100);
+        List<String> kept = bodies(journal.replayFrom(0, 1));
+        assertEquals("report 100", kept.get(kept.size() - 1));
+        assertEquals(range(101 - kept.size(), 100), kept);
+        assertEquals(2, dir.listFiles((d, name) -> name.endsWith(".seg")).length);
+        assertTrue(kept.size() < 100, Arrays.toString(dir.list()));
+    }
+}
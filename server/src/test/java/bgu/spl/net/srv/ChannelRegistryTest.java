@@ -0,0 +1,153 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class ChannelRegistryTest {
+
+    private final ChannelRegistry registry = new ChannelRegistry();
+
+    //subscribers as "connection:subscription" strings, order does not matter
+    private Set<String> subscribers(String destination) {
+        int[] packed = registry.subscribers(destination);
+        Set<String> all = new HashSet<>();
+        for (int i = 0; i < packed.length; i += 2) {
+            all.add(packed[i] + ":" + packed[i + 1]);
+        }
+        return all;
+    }
+
+    @Test
+    void patternsAreRecognised() {
+        assertTrue(ChannelRegistry.isPattern("/wc/*/g1"));
+        assertTrue(ChannelRegistry.isPattern("/wc/**"));
+        assertTrue(ChannelRegistry.isPattern("*"));
+        assertFalse(ChannelRegistry.isPattern("/wc/g*1"));
+        assertFalse(ChannelRegistry.isPattern("/wc/***"));
+        assertFalse(ChannelRegistry.isPattern("Germany_Japan"));
+    }
+
+    @Test
+    void singleSegmentWildcard() {
+        assertTrue(ChannelRegistry.matches("/wc/*/g1", "/wc/groupA/g1"));
+        assertFalse(ChannelRegistry.matches("/wc/*/g1", "/wc/g1"));
+        assertFalse(ChannelRegistry.matches("/wc/*/g1", "/wc/a/b/g1"));
+        assertFalse(ChannelRegistry.matches("/wc/*", "/wc/a/b"));
+    }
+
+    @Test
+    void multiSegmentWildcard() {
+        assertTrue(ChannelRegistry.matches("/wc/**", "/wc/groupA/g1"));
+        assertTrue(ChannelRegistry.matches("/wc/**", "/wc"));
+        assertTrue(ChannelRegistry.matches("/wc/**/g1", "/wc/g1"));
+        assertTrue(ChannelRegistry.matches("/wc/**/g1", "/wc/a/b/g1"));
+        assertFalse(ChannelRegistry.matches("/wc/**/g1", "/wc/a/g2"));
+        assertFalse(ChannelRegistry.matches("/wc/**", "/other/g1"));
+    }
+
+    @Test
+    void exactSubscriptionsMatchOnlyTheirChannel() {
+        assertTrue(ChannelRegistry.matches("/wc/g1", "/wc/g1"));
+        assertFalse(ChannelRegistry.matches("/wc/g1", "/wc/g2"));
+    }
+
+    @Test
+    void subscribersCombineExactAndWildcard() {
+        registry.add("/wc/a/g1", 1, 10);
+        registry.add("/wc/*/g1", 2, 20);
+        registry.add("/wc/**", 3, 30);
+        registry.add("/other/**", 4, 40);
+
+        assertEquals(Set.of("1:10", "2:20", "3:30"), subscribers("/wc/a/g1"));
+        assertEquals(Set.of("3:30"), subscribers("/wc/a/g2"));
+        assertEquals(Set.of(), subscribers("/nobody"));
+
+        registry.remove("/wc/**", 3);
+        assertEquals(Set.of("1:10", "2:20"), subscribers("/wc/a/g1"));
+        registry.remove("/wc/a/g1", 1);
+        assertEquals(Set.of("2:20"), subscribers("/wc/a/g1"));
+    }
+
+    @Test
+    void connectionIsListedOncePerMatchingSubscription() {
+        registry.add("/wc/g1", 1, 10);
+        registry.add("/wc/*", 1, 11);
+        registry.add("/wc/**", 1, 12);
+        registry.add("/wc/**", 1, 13); //replaces the id of the same pattern
+        assertEquals(Set.of("1:10", "1:11", "1:13"), subscribers("/wc/g1"));
+        assertEquals(6, registry.subscribers("/wc/g1").length);
+    }
+
+    @Test
+    void subscribersSeeChangesAfterCaching() {
+        registry.add("/wc/*", 1, 10);
+        assertEquals(Set.of("1:10"), subscribers("/wc/g1"));
+        registry.add("/wc/g1", 2, 20);
+        assertEquals(Set.of("1:10", "2:20"), subscribers("/wc/g1"));
+        registry.add("/wc/**", 3, 30);
+        assertEquals(Set.of("1:10", "2:20", "3:30"), subscribers("/wc/g1"));
+    }
+
+    @Test
+    void fullCacheKeepsItsHotDestinations() {
+        registry.add("/wc/*", 1, 10);
+        registry.add("/wc/hot", 2, 20);
+        int[] hot = registry.subscribers("/wc/hot");
+        for (int i = 0; i < 3 * ChannelRegistry.MAX_CACHED_DESTINATIONS; i++) {
+            registry.subscribers("/wc/cold" + i);
+            //a resolution that was rebuilt would be a new array
+            assertSame(hot, registry.subscribers("/wc/hot"));
+        }
+        assertTrue(registry.cachedDestinations() <= ChannelRegistry.MAX_CACHED_DESTINATIONS);
+    }
+
+    @Test
+    void addingAgainReplacesTheSubscriptionId() {
+        registry.add("/wc/g1", 1, 10);
+        registry.add("/wc/g1", 2, 20);
+        registry.add("/wc/g1", 1, 11);
+        assertEquals(Set.of("1:11", "2:20"), subscribers("/wc/g1"));
+        assertEquals(Set.of(), subscribers("/wc/g2"));
+    }
+
+    @Test
+    void channelIsDroppedWithItsLastSubscriber() {
+        registry.add("/wc/g1", 1, 10);
+        registry.add("/wc/g2", 1, 11);
+        assertEquals(2, registry.channelCount());
+        registry.remove("/wc/g1", 1);
+        registry.remove("/wc/g2", 2); //not subscribed there, nothing changes
+        assertEquals(1, registry.channelCount());
+        assertEquals(0, registry.subscribers("/wc/g1").length);
+    }
+
+    @Test
+    void handedOutArraysAreNotModified() {
+        registry.add("/wc/g1", 1, 10);
+        int[] before = registry.subscribers("/wc/g1");
+        int[] copy = before.clone();
+        registry.add("/wc/g1", 2, 20);
+        registry.remove("/wc/g1", 1);
+        assertArrayEquals(copy, before);
+    }
+
+    @Test
+    void hasSubscribersForChannelsAndPatterns() {
+        registry.add("/wc/g1", 1, 10);
+        registry.add("/wc/**", 2, 20);
+        assertTrue(registry.hasSubscribers("/wc/g1"));
+        assertTrue(registry.hasSubscribers("/wc/**"));
+        assertFalse(registry.hasSubscribers("/wc/g2"));
+        assertFalse(registry.hasSubscribers("/wc/*"));
+        registry.remove("/wc/**", 2);
+        assertFalse(registry.hasSubscribers("/wc/**"));
+    }
+}
@@ -0,0 +1,126 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Two brokers in one JVM, linked over localhost the way separate processes would be.
+ */
+class FederationTest {
+
+    private static final long WAIT_MS = 5000;
+
+    //collects the frames sent to one connection
+    private static class Recorder implements ConnectionHandler<Object> {
+        final List<String> frames = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(Object msg) {
+            frames.add(String.valueOf(msg));
+        }
+
+        @Override
+        public void sendEncoded(ByteBuffer frame) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            BufferPool.release(frame);
+            frames.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    //a broker configured the way StompServer would be, federation settings are read once on creation
+    private static ConnectionsImpl<Object> broker(String nodeId, int port, String peers) {
+        System.setProperty("stomp.federation.nodeId", nodeId);
+        System.setProperty("stomp.federation.port", String.valueOf(port));
+        System.setProperty("stomp.federation.peers", peers);
+        try {
+            return new ConnectionsImpl<>();
+        } finally {
+            System.clearProperty("stomp.federation.nodeId");
+            System.clearProperty("stomp.federation.port");
+            System.clearProperty("stomp.federation.peers");
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, Runnable attempt) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            attempt.run();
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void messagesReachSubscribersOnThePeer() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        ConnectionsImpl<Object> a = broker("test-a", portA, "");
+        ConnectionsImpl<Object> b = broker("test-b", portB, "127.0.0.1:" + portA);
+
+        Recorder exact = new Recorder();
+        Recorder wildcard = new Recorder();
+        Recorder other = new Recorder();
+        b.addConnection(1, exact);
+        b.addConnection(2, wildcard);
+        b.addConnection(3, other);
+        b.subscribe(1, "/wc/g1", 10);
+        b.subscribe(2, "/wc/**", 20);
+        b.subscribe(3, "/other", 30);
+
+        byte[] body = "hello".getBytes(StandardCharsets.UTF_8);
+        //published on a until the link is up and b's interest has arrived
+        awaitTrue(() -> !exact.frames.isEmpty() && !wildcard.frames.isEmpty(),
+                () -> a.broadcast("/wc/g1", body, 0, body.length));
+
+        assertTrue(exact.frames.get(0).contains("\nsubscription:10\n"));
+        assertTrue(exact.frames.get(0).contains("\n\nhello\n"));
+        assertTrue(wildcard.frames.get(0).contains("\nsubscription:20\n"));
+        assertTrue(other.frames.isEmpty());
+    }
+
+    @Test
+    void oversizedRecordClosesTheLink() throws Exception {
+        int port = freePort();
+        broker("test-c", port, "");
+        try (Socket peer = new Socket("127.0.0.1", port)) {
+            peer.setSoTimeout((int) WAIT_MS);
+            DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+            byte[] name = "test-hostile".getBytes(StandardCharsets.UTF_8);
+            out.writeByte('H');
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeByte('I');
+            out.writeInt(Integer.MAX_VALUE); //would make the broker allocate 2GB
+            out.flush();
+
+            DataInputStream in = new DataInputStream(peer.getInputStream());
+            assertEquals('H', in.readByte()); //the broker's own hello
+            in.readFully(new byte[in.readInt()]);
+            assertEquals(-1, in.read()); //then it hangs up
+        }
+    }
+}
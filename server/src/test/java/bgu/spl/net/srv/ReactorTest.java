@@ -0,0 +1,132 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.echo.LineMessageEncoderDecoder;
+
+/**
+ * The reactor served over real sockets on localhost, with lines echoed back by a trivial protocol.
+ */
+class ReactorTest {
+
+    private static final int WAIT_MS = 5000;
+
+    //sends every line back to the connection it came from
+    private static class EchoProtocol implements StompMessagingProtocol<String> {
+        private int connectionId;
+        private Connections<String> connections;
+
+        @Override
+        public void start(int connectionId, Connections<String> connections) {
+            this.connectionId = connectionId;
+            this.connections = connections;
+        }
+
+        @Override
+        public void process(String message) {
+            connections.send(connectionId, message);
+        }
+
+        @Override
+        public boolean shouldTerminate() {
+            return false;
+        }
+    }
+
+    private final List<Socket> clients = new ArrayList<>();
+    private Reactor<String> reactor;
+    private Thread server;
+
+    @AfterEach
+    void stop() throws Exception {
+        for (Socket client : clients) {
+            client.close();
+        }
+        if (reactor != null) {
+            reactor.close();
+        }
+        if (server != null) {
+            server.join(WAIT_MS);
+        }
+    }
+
+    private void start(int eventLoops) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        reactor = new Reactor<>(2, eventLoops, port, EchoProtocol::new, LineMessageEncoderDecoder::new);
+        server = new Thread(reactor::serve, "reactor-test");
+        server.start();
+        for (int i = 0; i < 7; i++) {
+            clients.add(connect(port));
+        }
+    }
+
+    private static Socket connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (true) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(WAIT_MS);
+                return socket;
+            } catch (IOException ex) {
+                if (System.currentTimeMillis() > deadline) throw ex;
+                Thread.sleep(20); //the reactor is still binding
+            }
+        }
+    }
+
+    private static String echo(Socket client, String line) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        InputStream in = client.getInputStream();
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new IOException("connection closed before the reply");
+            reply.write(b);
+        }
+        return new String(reply.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void connectionsAreSpreadRoundRobinOverTheLoops() throws Exception {
+        start(3);
+        //a reply means the connection was registered with its loop
+        for (int i = 0; i < clients.size(); i++) {
+            assertEquals("hello " + i, echo(clients.get(i), "hello " + i));
+        }
+        assertArrayEquals(new int[]{3, 2, 2}, reactor.connectionsPerLoop());
+
+        //each loop keeps serving every connection it was given
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            assertEquals("again " + i, echo(clients.get(i), "again " + i));
+        }
+    }
+
+    @Test
+    void singleReactorServesConnectionsOnTheAcceptor() throws Exception {
+        start(0);
+        for (int i = 0; i < clients.size(); i++) {
+            assertEquals("hello " + i, echo(clients.get(i), "hello " + i));
+        }
+        assertArrayEquals(new int[0], reactor.connectionsPerLoop());
+    }
+}
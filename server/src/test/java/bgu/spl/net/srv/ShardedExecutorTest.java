@@ -0,0 +1,89 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ShardedExecutorTest {
+
+    private ShardedExecutor executor;
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private static List<Thread> workerThreads() {
+        List<Thread> workers = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("shard-worker-") && thread.isAlive()) workers.add(thread);
+        }
+        return workers;
+    }
+
+    @Test
+    void tasksOfOneKeyRunInOrderOnOneThread() throws InterruptedException {
+        executor = new ShardedExecutor(4, false);
+        List<Integer> order = new ArrayList<>();
+        List<String> threads = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            int n = i;
+            executor.execute(() -> {
+                order.add(n); //only ever touched by the key's worker
+                threads.add(Thread.currentThread().getName());
+                done.countDown();
+            }, 7);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) assertEquals(i, order.get(i));
+        assertEquals(1, threads.stream().distinct().count());
+    }
+
+    @Test
+    void idleWorkerStealsFromABlockedOne() throws InterruptedException {
+        executor = new ShardedExecutor(2, true);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(9); //the last task is left alone, one queued task is not stolen
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, 0);
+        for (int i = 0; i < 10; i++) {
+            executor.execute(done::countDown, 0);
+        }
+        //worker 0 is stuck, so the tasks only finish if worker 1 is woken up to steal them
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        long stolen = 0;
+        for (long count : executor.getStolenCounts()) stolen += count;
+        assertTrue(stolen > 0);
+    }
+
+    @Test
+    void idleWorkersBlockInsteadOfPolling() throws InterruptedException {
+        executor = new ShardedExecutor(3, true);
+        CountDownLatch done = new CountDownLatch(30);
+        for (int i = 0; i < 30; i++) {
+            executor.execute(done::countDown, i);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        List<Thread> workers = workerThreads();
+        assertFalse(workers.isEmpty());
+        for (Thread worker : workers) {
+            assertEquals(Thread.State.WAITING, worker.getState(), worker.getName()); //not TIMED_WAITING on a poll
+        }
+    }
+}
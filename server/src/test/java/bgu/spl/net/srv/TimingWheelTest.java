@@ -0,0 +1,89 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+    private static final long TICK = 10;
+
+    @Test
+    void taskRunsOnceItsDelayPassed() {
+        long start = System.currentTimeMillis();
+        TimingWheel wheel = new TimingWheel(TICK, 8);
+        List<Long> runs = new ArrayList<>();
+        wheel.schedule(now -> {
+            runs.add(now);
+            return -1;
+        }, 50);
+
+        wheel.advance(start + 20);
+        assertTrue(runs.isEmpty());
+        wheel.advance(start + 200);
+        assertEquals(1, runs.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void delaysLongerThanTheWheelTakeExtraRounds() {
+        long start = System.currentTimeMillis();
+        TimingWheel wheel = new TimingWheel(TICK, 4); //one turn of the wheel is 40ms
+        List<Long> runs = new ArrayList<>();
+        wheel.schedule(now -> {
+            runs.add(now);
+            return -1;
+        }, 250);
+
+        for (long t = start; t < start + 200; t += TICK) {
+            wheel.advance(t);
+        }
+        assertTrue(runs.isEmpty());
+        wheel.advance(start + 400);
+        assertEquals(1, runs.size());
+    }
+
+    @Test
+    void taskIsRescheduledByItsResult() {
+        long start = System.currentTimeMillis();
+        TimingWheel wheel = new TimingWheel(TICK, 8);
+        int[] runs = {0};
+        wheel.schedule(now -> ++runs[0] < 3 ? 30 : -1, 30);
+
+        for (long t = start; t <= start + 1000; t += TICK) {
+            wheel.advance(t);
+        }
+        assertEquals(3, runs[0]);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void failingTaskIsDropped() {
+        long start = System.currentTimeMillis();
+        TimingWheel wheel = new TimingWheel(TICK, 8);
+        int[] runs = {0};
+        wheel.schedule(now -> {
+            throw new IllegalStateException("expected by the test");
+        }, 10);
+        wheel.schedule(now -> {
+            runs[0]++;
+            return -1;
+        }, 10);
+
+        wheel.advance(start + 100);
+        assertEquals(1, runs[0]);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void millisToNextTickNeverNegative() {
+        long start = System.currentTimeMillis();
+        TimingWheel wheel = new TimingWheel(TICK, 8);
+        assertTrue(wheel.millisToNextTick(start) <= TICK + 5);
+        assertEquals(0, wheel.millisToNextTick(start + 1000));
+    }
+}